@@ -0,0 +1,255 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/****************************************************************************
+**
+** JMH benchmarks for the phases of the layout pipeline, on random DAGs from
+** GenRandNModeDAG.makeDaDag(). There is one benchmark per phase, and the
+** graph size is set by the modes, nodes and links parameters. Run with
+** "-prof gc" to see the allocation per operation.
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class LayoutBenchmark {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  @Param({"3"})
+  public int modes;
+
+  @Param({"1000", "10000"})
+  public int nodes;
+
+  @Param({"4000", "40000"})
+  public int links;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private File sifFile_;
+  private File noaFile_;
+  private Map<String, Integer> parsedNodes_;
+  private HashSet<Link> parsedLinks_;
+  private DagGraph graph_;
+  private MultiModeDagLayout done_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Write the random DAG, and build the parsed, graph and placed inputs
+  ** that the later phases start from
+  */
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    long maxLinks = ((long)nodes * (nodes - 1)) / 2;
+    if (links > maxLinks) {
+      throw new IllegalArgumentException(nodes + " nodes cannot have " + links + " links");
+    }
+    Map<String, Integer> nodeToClass = new HashMap<String, Integer>();
+    HashSet<Link> genLinks = new HashSet<Link>();
+    GenRandNModeDAG gen = new GenRandNModeDAG();
+    gen.makeDaDag(nodeToClass, genLinks, nodes, links, modes);
+    sifFile_ = File.createTempFile("layoutBench", ".sif");
+    noaFile_ = File.createTempFile("layoutBench", ".noa");
+    gen.writeSif(genLinks, sifFile_.getPath(), "to", nodeToClass);
+
+    parsedNodes_ = new HashMap<String, Integer>();
+    parsedLinks_ = new HashSet<Link>();
+    new MultiModeDagLayout().readNodesAndLinks(sifFile_, parsedNodes_, parsedLinks_);
+    graph_ = new MultiModeDagLayout().linksToSources(parsedNodes_, parsedLinks_);
+    done_ = new MultiModeDagLayout();
+    done_.setGraph(graph_);
+    placeAll(done_);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Remove the temp files
+  */
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    sifFile_.delete();
+    noaFile_.delete();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Read the SIF file into a graph
+  */
+
+  @Benchmark
+  public DagGraph parse() throws IOException {
+    return (new MultiModeDagLayout().readGraph(sifFile_));
+  }
+
+  /***************************************************************************
+  **
+  ** Build the graph from parsed nodes and links
+  */
+
+  @Benchmark
+  public DagGraph linksToSources() {
+    return (new MultiModeDagLayout().linksToSources(parsedNodes_, parsedLinks_));
+  }
+
+  /***************************************************************************
+  **
+  ** Extract the roots of every mode
+  */
+
+  @Benchmark
+  public void extractRoots(Blackhole bh) {
+    for (int i = 0; i <= graph_.getMaxClass(); i++) {
+      bh.consume(done_.extractRoots(i));
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Place everything after the roots. Placement uses up its state, so each
+  ** invocation starts from a fresh layout with the roots already placed.
+  */
+
+  @Benchmark
+  public int findNextCandidates(RootsPlaced rp, Blackhole bh) {
+    MultiModeDagLayout cp = rp.cp_;
+    int maxClass = graph_.getMaxClass();
+    int lastPlaced = -1;
+    while ((cp.getPlacedCount() < graph_.getNodeCount()) && (cp.getPlacedCount() != lastPlaced)) {
+      lastPlaced = cp.getPlacedCount();
+      for (int i = 0; i <= maxClass; i++) {
+        int[] next = cp.findNextCandidates(i);
+        bh.consume(next);
+        cp.addToPlaceList(next);
+      }
+    }
+    return (cp.getPlacedCount());
+  }
+
+  /***************************************************************************
+  **
+  ** Write the placed layout out as a NOA file
+  */
+
+  @Benchmark
+  public void writeNOA() throws IOException {
+    done_.writeNOA(noaFile_.getPath());
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A fresh layout with only the roots placed, built outside the timing
+  */
+
+  @State(Scope.Thread)
+  public static class RootsPlaced {
+
+    MultiModeDagLayout cp_;
+
+    @Setup(Level.Invocation)
+    public void setup(LayoutBenchmark bench) {
+      cp_ = new MultiModeDagLayout();
+      cp_.setGraph(bench.graph_);
+      for (int i = 0; i <= bench.graph_.getMaxClass(); i++) {
+        cp_.addToPlaceList(cp_.extractRoots(i));
+      }
+      return;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Place everything
+  */
+
+  private static void placeAll(MultiModeDagLayout cp) {
+    DagGraph graph = cp.getGraph();
+    int maxClass = graph.getMaxClass();
+    for (int i = 0; i <= maxClass; i++) {
+      cp.addToPlaceList(cp.extractRoots(i));
+    }
+    int lastPlaced = -1;
+    while ((cp.getPlacedCount() < graph.getNodeCount()) && (cp.getPlacedCount() != lastPlaced)) {
+      lastPlaced = cp.getPlacedCount();
+      for (int i = 0; i <= maxClass; i++) {
+        cp.addToPlaceList(cp.findNextCandidates(i));
+      }
+    }
+    return;
+  }
+}
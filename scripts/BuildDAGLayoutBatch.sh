@@ -0,0 +1,10 @@
+#! /bin/bash
+
+NUM_THREADS=4
+MEMORY_MB=1024
+SIF_DIR=sifs
+NOA_DIR=noas
+MAIN_CLASS=org.systemsbiology.biofabric.layoutTools.BatchLayout
+JAR_FILE=BioFabricModalDAGLayout.jar
+
+java -cp ${JAR_FILE} ${MAIN_CLASS} -threads ${NUM_THREADS} -memoryMB ${MEMORY_MB} -outDir ${NOA_DIR} ${SIF_DIR}
\ No newline at end of file
@@ -0,0 +1,10 @@
+#! /bin/bash
+
+MEMORY_MB=256
+TEMP_DIR=/tmp
+SIF_FILE=bigDAG.sif
+NOA_FILE=bigDAG.noa
+MAIN_CLASS=org.systemsbiology.biofabric.layoutTools.ExternalLayout
+JAR_FILE=BioFabricModalDAGLayout.jar
+
+java -cp ${JAR_FILE} ${MAIN_CLASS} -memoryMB ${MEMORY_MB} -tempDir ${TEMP_DIR} ${SIF_FILE} ${NOA_FILE}
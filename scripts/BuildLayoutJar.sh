@@ -0,0 +1,7 @@
+#! /bin/bash
+
+JAR_FILE=BioFabricModalDAGLayout.jar
+
+cd "$(dirname "$0")" || exit 1
+mvn -B -q -f ../pom.xml package || exit 1
+cp ../layout/target/${JAR_FILE} ${JAR_FILE} || exit 1
@@ -0,0 +1,11 @@
+#! /bin/bash
+
+FORKS=2
+WARMUP=5
+ITERATIONS=10
+NUM_MODES=3
+NUM_NODES=1000,10000
+NUM_LINKS=4000,40000
+BENCH_JAR_FILE=../bench/target/benchmarks.jar
+
+java -jar ${BENCH_JAR_FILE} -f ${FORKS} -wi ${WARMUP} -i ${ITERATIONS} -p modes=${NUM_MODES} -p nodes=${NUM_NODES} -p links=${NUM_LINKS} -prof gc LayoutBenchmark
@@ -0,0 +1,10 @@
+#! /bin/bash
+
+PORT=8765
+MAX_JOBS=2
+MEMORY_MB=1024
+PATH_ROOT=sifs
+MAIN_CLASS=org.systemsbiology.biofabric.layoutTools.LayoutService
+JAR_FILE=BioFabricModalDAGLayout.jar
+
+java -cp ${JAR_FILE} ${MAIN_CLASS} -port ${PORT} -maxJobs ${MAX_JOBS} -memoryMB ${MEMORY_MB} -pathRoot ${PATH_ROOT}
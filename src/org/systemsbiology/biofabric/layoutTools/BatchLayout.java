@@ -0,0 +1,539 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/****************************************************************************
+**
+** Lays out a batch of SIF files in one JVM, writing one NOA per input. The
+** files go to a work-stealing pool, largest first. Memory is bounded by a
+** byte budget: each job reserves an estimate from its file size before it
+** reads the file, and waits while the running jobs hold too much (a job
+** bigger than the whole budget runs by itself). That wait goes through
+** ForkJoinPool.managedBlock(), so the pool can bring in a spare thread and
+** keep the other workers busy. A file that fails, e.g. on a class conflict
+** or a cycle, is reported and the rest carry on; the exit status is then
+** non-zero. Running out of memory is different: the estimates were wrong
+** and the heap may be in a bad state, so the whole batch is aborted.
+**
+** The inputs come from a manifest, one "sifInfile [noaOutfile]" per line
+** (blank lines and lines starting with # are skipped; relative paths are
+** against the manifest's directory), or from every .sif and .sif.gz file
+** in a directory. Without a named output, the NOA goes next to the input,
+** or in the output directory if one is given.
+*/
+
+public class BatchLayout {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // Peak heap per input byte, from measurements on generated DAGs, with room
+  // to spare; gzipped SIF inflates about five to one:
+  //
+
+  private final static long BYTES_PER_SIF_BYTE_ = 8;
+  private final static long BYTES_PER_GZIP_BYTE_ = 40;
+  private final static long BYTES_PER_SNAPSHOT_BYTE_ = 3;
+  private final static long PROGRESS_NANOS_ = 1000000000L;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private int numThreads_;
+  private long budget_;
+  private long reserved_;
+  private volatile boolean aborted_;
+  private boolean condenseCycles_;
+  private AtomicInteger numDone_;
+  private long nextReport_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public BatchLayout(int numThreads, long memoryBudget, boolean condenseCycles) {
+    if ((numThreads < 1) || (memoryBudget < 1)) {
+      throw new IllegalArgumentException();
+    }
+    numThreads_ = numThreads;
+    budget_ = memoryBudget;
+    reserved_ = 0L;
+    aborted_ = false;
+    condenseCycles_ = condenseCycles;
+    numDone_ = new AtomicInteger(0);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Lay out all the jobs. Each one ends up with its error set if it failed;
+  ** returns the number that failed. If a job runs out of memory, no more
+  ** jobs are started and the OutOfMemoryError is thrown from here.
+  */
+
+  public int run(List<Job> jobs) {
+    ArrayList<Job> bySize = new ArrayList<Job>(jobs);
+    for (int i = 0; i < bySize.size(); i++) {
+      Job job = bySize.get(i);
+      job.estimate_ = estimate(job.in_);
+    }
+    Collections.sort(bySize, new Comparator<Job>() {
+      public int compare(Job j1, Job j2) {
+        return (Long.compare(j2.estimate_, j1.estimate_));
+      }
+    });
+
+    numDone_.set(0);
+    nextReport_ = System.nanoTime() + PROGRESS_NANOS_;
+    ForkJoinPool pool = new ForkJoinPool(numThreads_);
+    try {
+      ArrayList<JobTask> tasks = new ArrayList<JobTask>();
+      for (int i = 0; i < bySize.size(); i++) {
+        tasks.add(new JobTask(bySize.get(i), bySize.size()));
+      }
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      if (aborted_) {
+        pool.shutdownNow();
+      } else {
+        pool.shutdown();
+      }
+    }
+
+    int failed = 0;
+    for (int i = 0; i < jobs.size(); i++) {
+      if (jobs.get(i).error_ != null) {
+        failed++;
+      }
+    }
+    return (failed);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Read the jobs from a manifest. The output directory may be null.
+  */
+
+  public static List<Job> readManifest(File manifest, File outDir) throws IOException {
+    ArrayList<Job> retval = new ArrayList<Job>();
+    File base = manifest.getAbsoluteFile().getParentFile();
+    BufferedReader in = new BufferedReader(new InputStreamReader(GzipStreams.openInput(manifest), StandardCharsets.UTF_8));
+    try {
+      String line;
+      int lineNum = 0;
+      while ((line = in.readLine()) != null) {
+        lineNum++;
+        line = line.trim();
+        if (line.equals("") || line.startsWith("#")) {
+          continue;
+        }
+        String[] toks = line.split("\\s+");
+        if (toks.length > 2) {
+          throw new IOException("Bad manifest line " + lineNum + ": " + line);
+        }
+        File sifIn = resolve(base, toks[0]);
+        String noaOut = (toks.length == 2) ? resolve(base, toks[1]).getPath() : defaultOutput(sifIn, outDir);
+        retval.add(new Job(sifIn, noaOut));
+      }
+    } finally {
+      in.close();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Get a job for every SIF file in the directory, in name order. The output
+  ** directory may be null.
+  */
+
+  public static List<Job> listDirectory(File dir, File outDir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list " + dir);
+    }
+    Arrays.sort(files);
+    ArrayList<Job> retval = new ArrayList<Job>();
+    for (int i = 0; i < files.length; i++) {
+      String name = files[i].getName();
+      if (files[i].isFile() && (name.endsWith(".sif") || name.endsWith(".sif" + GzipStreams.SUFFIX))) {
+        retval.add(new Job(files[i], defaultOutput(files[i], outDir)));
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Run program
+  */
+
+  public static void main(String[] argv) {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    boolean condenseCycles = false;
+    File outDir = null;
+    File manifest = null;
+    int argc = 0;
+    try {
+      while ((argc < argv.length) && argv[argc].startsWith("-")) {
+        if (argv[argc].equals("-threads") && (argc + 1 < argv.length)) {
+          numThreads = Integer.parseInt(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-memoryMB") && (argc + 1 < argv.length)) {
+          memoryBudget = Long.parseLong(argv[argc + 1]) << 20;
+          argc += 2;
+        } else if (argv[argc].equals("-outDir") && (argc + 1 < argv.length)) {
+          outDir = new File(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-manifest") && (argc + 1 < argv.length)) {
+          manifest = new File(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-condenseCycles")) {
+          condenseCycles = true;
+          argc++;
+        } else {
+          break;
+        }
+      }
+    } catch (NumberFormatException ex) {
+      argc = -1;
+    }
+
+    int numArgs = argv.length - argc;
+    if ((argc == -1) || (numThreads < 1) || (memoryBudget < 1) || (numArgs != ((manifest == null) ? 1 : 0))) {
+      System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.BatchLayout [-threads N] [-memoryMB N] [-condenseCycles] [-outDir dir] (-manifest manifestFile | sifDirectory)");
+      return;
+    }
+
+    int status = 0;
+    try {
+      if (outDir != null) {
+        outDir.mkdirs();
+      }
+      List<Job> jobs = (manifest != null) ? readManifest(manifest, outDir) : listDirectory(new File(argv[argc]), outDir);
+      long start = System.nanoTime();
+      int failed = new BatchLayout(numThreads, memoryBudget, condenseCycles).run(jobs);
+      long millis = (System.nanoTime() - start) / 1000000L;
+      System.out.println("Laid out " + (jobs.size() - failed) + " of " + jobs.size() + " files in " + millis + " ms");
+      if (failed > 0) {
+        status = 1;
+        System.out.println(failed + " failed:");
+        for (int i = 0; i < jobs.size(); i++) {
+          Job job = jobs.get(i);
+          if (job.getError() != null) {
+            System.out.println("  " + job.getInput() + ": " + job.getError());
+          }
+        }
+      }
+    } catch (Exception ex) {
+      System.err.println("Caught exception:" + ex);
+      status = 1;
+    } catch (OutOfMemoryError oom) {
+      System.err.println("Batch aborted: out of memory");
+      status = 1;
+    }
+    if (status != 0) {
+      System.exit(status);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Lay out one file
+  */
+
+  private void runJob(Job job, int numJobs) {
+    if (aborted_) {
+      job.error_ = "Not run: the batch was aborted";
+      return;
+    }
+    long need = Math.min(job.estimate_, budget_);
+    try {
+      reserve(need);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      job.error_ = "Interrupted";
+      return;
+    }
+    try {
+      MultiModeDagLayout engine = new MultiModeDagLayout();
+      DagGraph graph = engine.readGraph(job.in_, 1);
+      int[] order = engine.layout(graph, condenseCycles_);
+      MultiModeDagLayout.writeNOA(job.out_, graph, order);
+    } catch (Exception ex) {
+      job.error_ = ex.toString();
+      System.err.println("Failed on " + job.in_ + ": " + ex);
+    } catch (OutOfMemoryError oom) {
+      aborted_ = true;
+      job.error_ = oom.toString();
+      System.err.println("Out of memory on " + job.in_ + "; aborting the batch");
+      throw oom;
+    } finally {
+      release(need);
+    }
+    reportProgress(numDone_.incrementAndGet(), numJobs);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Wait until the bytes fit in the budget, then take them. Something
+  ** always gets to run, however big. This runs on pool workers, so the wait
+  ** is a managed block.
+  */
+
+  private void reserve(final long bytes) throws InterruptedException {
+    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+      public boolean isReleasable() {
+        return (tryReserve(bytes));
+      }
+
+      public boolean block() throws InterruptedException {
+        awaitReserve(bytes);
+        return (true);
+      }
+    });
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Take the bytes if they fit in the budget
+  */
+
+  private synchronized boolean tryReserve(long bytes) {
+    if ((reserved_ > 0L) && (reserved_ + bytes > budget_)) {
+      return (false);
+    }
+    reserved_ += bytes;
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Wait until the bytes fit in the budget, and take them
+  */
+
+  private synchronized void awaitReserve(long bytes) throws InterruptedException {
+    while (!tryReserve(bytes)) {
+      wait();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Give the bytes back
+  */
+
+  private synchronized void release(long bytes) {
+    reserved_ -= bytes;
+    notifyAll();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Progress goes out at most once a second, and at the end
+  */
+
+  private synchronized void reportProgress(int done, int numJobs) {
+    long now = System.nanoTime();
+    if ((done == numJobs) || (now >= nextReport_)) {
+      System.out.println("Files done = " + done + " of " + numJobs);
+      nextReport_ = now + PROGRESS_NANOS_;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Estimate the peak memory to lay out the file
+  */
+
+  static long estimate(File file) {
+    long size = file.length();
+    try {
+      if (GzipStreams.isGzipped(file)) {
+        return (size * BYTES_PER_GZIP_BYTE_);
+      } else if (GraphSnapshot.isSnapshot(file)) {
+        return (size * BYTES_PER_SNAPSHOT_BYTE_);
+      }
+    } catch (IOException ioex) {
+      // The job will report it when it fails to read the file
+    }
+    return (size * BYTES_PER_SIF_BYTE_);
+  }
+
+  /***************************************************************************
+  **
+  ** A path from a manifest
+  */
+
+  private static File resolve(File base, String path) {
+    File file = new File(path);
+    return ((file.isAbsolute() || (base == null)) ? file : new File(base, path));
+  }
+
+  /***************************************************************************
+  **
+  ** The NOA for an input: same name with .noa in place of .sif (keeping a
+  ** .gz), next to the input or in the output directory
+  */
+
+  private static String defaultOutput(File sifIn, File outDir) {
+    String name = sifIn.getName();
+    String gz = "";
+    if (name.endsWith(GzipStreams.SUFFIX)) {
+      name = name.substring(0, name.length() - GzipStreams.SUFFIX.length());
+      gz = GzipStreams.SUFFIX;
+    }
+    if (name.endsWith(".sif")) {
+      name = name.substring(0, name.length() - 4);
+    }
+    File dir = (outDir != null) ? outDir : sifIn.getAbsoluteFile().getParentFile();
+    return (new File(dir, name + ".noa" + gz).getPath());
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** One input and its output
+  */
+
+  public static class Job {
+
+    private File in_;
+    private String out_;
+    private long estimate_;
+    private volatile String error_;
+
+    public Job(File in, String out) {
+      in_ = in;
+      out_ = out;
+      estimate_ = 0L;
+      error_ = null;
+    }
+
+    public File getInput() {
+      return (in_);
+    }
+
+    public String getOutput() {
+      return (out_);
+    }
+
+    /***************************************************************************
+    **
+    ** Get why the job failed; null if it did not
+    */
+
+    public String getError() {
+      return (error_);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Pool task for one job
+  */
+
+  private class JobTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private Job job_;
+    private int numJobs_;
+
+    JobTask(Job job, int numJobs) {
+      job_ = job;
+      numJobs_ = numJobs;
+    }
+
+    @Override
+    protected void compute() {
+      runJob(job_, numJobs_);
+      return;
+    }
+  }
+}
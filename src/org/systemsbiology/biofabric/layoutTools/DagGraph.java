@@ -0,0 +1,369 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** Dense integer-ID graph used by the layout. Nodes are numbered 0..N-1, and
+** the links (pointed backwards, from each node to its parents, like l2p_ in
+** the original layout) are held as compressed-sparse-row int arrays in both
+** directions. The number of parents of a node is its out-degree, and the
+** number of children is its in-degree. Names are only needed for output and
+** for the final name tie-break, which uses a precomputed name rank, so they
+** are kept as UTF-8 in a NodeInterner pool rather than as Strings. A graph
+** is never changed once built, so it can be shared between threads and
+** layout engines.
+*/
+
+public class DagGraph {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private NodeInterner names_;
+  private int[] nodeClass_;
+  private int maxClass_;
+  private int[] parentStart_;
+  private int[] parents_;
+  private int[] childStart_;
+  private int[] children_;
+  private int[] byName_;
+  private int[] nameRank_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Links are given in the backwards sense: linkSrc[i] is the
+  ** child and linkTrg[i] is the parent. Duplicate links are dropped. The
+  ** arrays are not kept.
+  */
+
+  public DagGraph(String[] names, int[] nodeClass, int[] linkSrc, int[] linkTrg, int numLinks) {
+    this(poolOf(names), nodeClass, linkSrc, linkTrg, numLinks);
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor for names already pooled, with node IDs as pool IDs. The
+  ** graph takes ownership of the pool as it is: no names may be added to it
+  ** after, and any room kept for growth stays (trim() it first).
+  */
+
+  public DagGraph(NodeInterner names, int[] nodeClass, int[] linkSrc, int[] linkTrg, int numLinks) {
+    int numNodes = names.size();
+    if (nodeClass.length != numNodes) {
+      throw new IllegalArgumentException();
+    }
+    names_ = names;
+    nodeClass_ = nodeClass.clone();
+    maxClass_ = -1;
+    for (int i = 0; i < numNodes; i++) {
+      if (nodeClass_[i] > maxClass_) {
+        maxClass_ = nodeClass_[i];
+      }
+    }
+
+    //
+    // Bucket the links by child, then sort each row so duplicates can be
+    // squeezed out:
+    //
+
+    parentStart_ = new int[numNodes + 1];
+    for (int i = 0; i < numLinks; i++) {
+      parentStart_[linkSrc[i] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      parentStart_[i + 1] += parentStart_[i];
+    }
+    int[] fill = Arrays.copyOf(parentStart_, numNodes);
+    int[] rawParents = new int[numLinks];
+    for (int i = 0; i < numLinks; i++) {
+      rawParents[fill[linkSrc[i]]++] = linkTrg[i];
+    }
+
+    int write = 0;
+    for (int i = 0; i < numNodes; i++) {
+      int start = parentStart_[i];
+      int end = parentStart_[i + 1];
+      Arrays.sort(rawParents, start, end);
+      parentStart_[i] = write;
+      for (int j = start; j < end; j++) {
+        if ((j == start) || (rawParents[j] != rawParents[j - 1])) {
+          rawParents[write++] = rawParents[j];
+        }
+      }
+    }
+    parentStart_[numNodes] = write;
+    parents_ = (write == numLinks) ? rawParents : Arrays.copyOf(rawParents, write);
+
+    //
+    // Reverse for the children. Walking children in ID order keeps each row sorted:
+    //
+
+    childStart_ = new int[numNodes + 1];
+    for (int i = 0; i < write; i++) {
+      childStart_[parents_[i] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      childStart_[i + 1] += childStart_[i];
+    }
+    fill = Arrays.copyOf(childStart_, numNodes);
+    children_ = new int[write];
+    for (int i = 0; i < numNodes; i++) {
+      int end = parentStart_[i + 1];
+      for (int j = parentStart_[i]; j < end; j++) {
+        children_[fill[parents_[j]]++] = i;
+      }
+    }
+
+    buildNameRanks();
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor for arrays that already hold a built graph, e.g. from a
+  ** snapshot. The rows must be sorted and free of duplicates, the two
+  ** directions must agree, and byName must be the nodes in name order. The
+  ** arrays are kept, not copied.
+  */
+
+  DagGraph(NodeInterner names, int[] nodeClass, int[] parentStart, int[] parents,
+           int[] childStart, int[] children, int[] byName) {
+    int numNodes = names.size();
+    names_ = names;
+    nodeClass_ = nodeClass;
+    maxClass_ = -1;
+    for (int i = 0; i < numNodes; i++) {
+      if (nodeClass_[i] > maxClass_) {
+        maxClass_ = nodeClass_[i];
+      }
+    }
+    parentStart_ = parentStart;
+    parents_ = parents;
+    childStart_ = childStart;
+    children_ = children;
+    byName_ = byName;
+    nameRank_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nameRank_[byName_[i]] = i;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor for subclasses that keep everything but the names elsewhere,
+  ** and override the other getters
+  */
+
+  DagGraph(NodeInterner names, int maxClass) {
+    names_ = names;
+    maxClass_ = maxClass;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the node count
+  */
+
+  public int getNodeCount() {
+    return (names_.size());
+  }
+
+  /***************************************************************************
+  **
+  ** Get the (deduplicated) link count
+  */
+
+  public int getLinkCount() {
+    return (parents_.length);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the highest node class
+  */
+
+  public int getMaxClass() {
+    return (maxClass_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the node name
+  */
+
+  public String getNodeName(int node) {
+    return (names_.getName(node));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the pool holding the names, by node ID
+  */
+
+  public NodeInterner getNamePool() {
+    return (names_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the node class
+  */
+
+  public int getNodeClass(int node) {
+    return (nodeClass_[node]);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the position of the node in name order
+  */
+
+  public int getNameRank(int node) {
+    return (nameRank_[node]);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the node at the given position in name order
+  */
+
+  public int getNodeForNameRank(int rank) {
+    return (byName_[rank]);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of parents (the out-degree of the backwards links)
+  */
+
+  public int getParentCount(int node) {
+    return (parentStart_[node + 1] - parentStart_[node]);
+  }
+
+  /***************************************************************************
+  **
+  ** Parents of node are at getParent(i) for parentsStart(node) <= i < parentsEnd(node)
+  */
+
+  public int parentsStart(int node) {
+    return (parentStart_[node]);
+  }
+
+  public int parentsEnd(int node) {
+    return (parentStart_[node + 1]);
+  }
+
+  public int getParent(int index) {
+    return (parents_[index]);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of children (the in-degree of the backwards links)
+  */
+
+  public int getChildCount(int node) {
+    return (childStart_[node + 1] - childStart_[node]);
+  }
+
+  /***************************************************************************
+  **
+  ** Children of node are at getChild(i) for childrenStart(node) <= i < childrenEnd(node)
+  */
+
+  public int childrenStart(int node) {
+    return (childStart_[node]);
+  }
+
+  public int childrenEnd(int node) {
+    return (childStart_[node + 1]);
+  }
+
+  public int getChild(int index) {
+    return (children_[index]);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Sort the names once, so name tie-breaks are just int compares. The sort
+  ** is stable, so repeated names rank in ID order.
+  */
+
+  private void buildNameRanks() {
+    int numNodes = names_.size();
+    byName_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      byName_[i] = i;
+    }
+    IntSorter.sort(byName_, 0, numNodes, new IntSorter.IntComparator() {
+      public int compare(int n1, int n2) {
+        return (names_.compareNames(n1, n2));
+      }
+    });
+    nameRank_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nameRank_[byName_[i]] = i;
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Pool a list of names, keeping their positions as IDs
+  */
+
+  private static NodeInterner poolOf(String[] names) {
+    NodeInterner retval = new NodeInterner();
+    for (int i = 0; i < names.length; i++) {
+      retval.append(names[i]);
+    }
+    retval.trim();
+    return (retval);
+  }
+}
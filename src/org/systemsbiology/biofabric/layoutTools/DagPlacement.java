@@ -0,0 +1,404 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** The placement steps shared by the in-memory and external layouts: the
+** ready frontier, the step loop, root extraction and the candidate sort
+** key. Subclasses say where the degrees and adjacency come from, and how a
+** step's candidates get their keys; the graph here is only asked for node
+** classes and name ranks.
+*/
+
+abstract class DagPlacement {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static long PROGRESS_NANOS_ = 1000000000L;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  DagGraph graph_;
+  LayoutVariant variant_;
+  int[] placeList_;
+  int numPlaced_;
+  int[] rowIndex_;
+
+  //
+  // Ready-frontier scheduling: each node keeps a count of parents still to be
+  // placed. When that hits zero the node is queued on the list for its class.
+  // The per-class queues are intrusive linked lists threaded through nextReady_:
+  //
+
+  int[] pendingParents_;
+  int[] nextReady_;
+  int[] readyHead_;
+  int[] readyTail_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  DagPlacement() {
+    graph_ = null;
+    variant_ = LayoutVariant.DEFAULT;
+    placeList_ = new int[0];
+    numPlaced_ = 0;
+    rowIndex_ = new int[0];
+    pendingParents_ = new int[0];
+    nextReady_ = new int[0];
+    readyHead_ = new int[0];
+    readyTail_ = new int[0];
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE ABSTRACT METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Degrees of a node of the graph being placed
+  */
+
+  abstract int parentCount(int node);
+
+  abstract int childCount(int node);
+
+  /***************************************************************************
+  **
+  ** Put a step's nodes in the next rows, and count down their children
+  */
+
+  abstract void addToPlaceList(int[] nextBatch);
+
+  /***************************************************************************
+  **
+  ** Drain the ready queue for the class, in step order
+  */
+
+  abstract int[] findNextCandidates(int nextClass);
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Set up the placement state for the graph, reusing the buffers where they
+  ** are big enough. The degrees must be ready to answer.
+  */
+
+  void startPlacement(DagGraph graph) {
+    graph_ = graph;
+    int numNodes = graph_.getNodeCount();
+    if (placeList_.length < numNodes) {
+      placeList_ = new int[numNodes];
+      rowIndex_ = new int[numNodes];
+      pendingParents_ = new int[numNodes];
+      nextReady_ = new int[numNodes];
+    }
+    numPlaced_ = 0;
+    Arrays.fill(rowIndex_, 0, numNodes, -1);
+    int numClass = graph_.getMaxClass() + 1;
+    if (readyHead_.length < numClass) {
+      readyHead_ = new int[numClass];
+      readyTail_ = new int[numClass];
+    }
+    Arrays.fill(readyHead_, -1);
+    Arrays.fill(readyTail_, -1);
+
+    //
+    // Nodes with no parents are ready from the start:
+    //
+
+    for (int i = 0; i < numNodes; i++) {
+      int numPar = parentCount(i);
+      pendingParents_[i] = numPar;
+      if (numPar == 0) {
+        enqueueReady(i);
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Place the roots, then keep placing the nodes whose parents are all placed.
+  ** Classes are visited in the order the variant gives. So with C classes,
+  ** placement step k < C places the roots of the k-th class in that order,
+  ** and after that step k places the ready nodes of class (k mod C).
+  */
+
+  void placeAll(boolean showProgress) {
+    int maxClass = graph_.getMaxClass();
+    int[] classOrder = variant_.getClassOrder(maxClass);
+    int nodesToGo = graph_.getNodeCount();
+    placementStarted();
+    for (int i = 0; i <= maxClass; i++) {
+      stepStarted(-1);
+      int[] placeList = extractRoots(classOrder[i]);
+      addToPlaceList(placeList);
+      nodesToGo -= placeList.length;
+      stepEnded(-1, placeList.length);
+    }
+
+    //
+    // Find the guys whose precursors have already been placed and place them.
+    // Progress goes out at most once a second, and when done:
+    //
+
+    long nextReport = System.nanoTime() + PROGRESS_NANOS_;
+    int round = 0;
+    while (nodesToGo > 0) {
+      int lastToGo = nodesToGo;
+      stepStarted(round);
+      for (int i = 0; i <= maxClass; i++) {
+        int[] nextBatch = findNextCandidates(classOrder[i]);
+        addToPlaceList(nextBatch);
+        nodesToGo -= nextBatch.length;
+        batchPlaced(nextBatch.length);
+      }
+      stepEnded(round, lastToGo - nodesToGo);
+      if (showProgress) {
+        long now = System.nanoTime();
+        if ((nodesToGo == 0) || (now >= nextReport)) {
+          System.out.println("Nodes to Go = " + nodesToGo);
+          nextReport = now + PROGRESS_NANOS_;
+        }
+      }
+      if (nodesToGo == lastToGo) {
+        throw new IllegalStateException(nodesToGo + " nodes can never be placed");
+      }
+      round++;
+    }
+    placementEnded(round);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Hooks for watching placeAll(): each step (round -1 for the roots of one
+  ** class), each batch of a round, and the whole placement. They do nothing
+  ** here.
+  */
+
+  void placementStarted() {
+    return;
+  }
+
+  void stepStarted(int round) {
+    return;
+  }
+
+  void batchPlaced(int size) {
+    return;
+  }
+
+  void stepEnded(int round, int numPlaced) {
+    return;
+  }
+
+  void placementEnded(int rounds) {
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Extract the root nodes in order from highest degree to low, but only for
+  ** the specified class number. Ties go in name order. This is a single
+  ** counting-sort pass on the child counts; roots without children go last.
+  */
+
+  int[] extractRoots(int currClass) {
+
+    //
+    // Roots, in name order, and the number in each child-count bucket:
+    //
+
+    int numNodes = graph_.getNodeCount();
+    int[] roots = new int[numNodes];
+    int numRoots = 0;
+    int maxCount = 0;
+    boolean reverse = variant_.isReverseNames();
+    for (int i = 0; i < numNodes; i++) {
+      int node = graph_.getNodeForNameRank((reverse) ? numNodes - 1 - i : i);
+      if ((graph_.getNodeClass(node) == currClass) && (parentCount(node) == 0)) {
+        roots[numRoots++] = node;
+        int count = childCount(node);
+        if (count > maxCount) {
+          maxCount = count;
+        }
+      }
+    }
+
+    int[] bucketStart = new int[maxCount + 2];
+    for (int i = 0; i < numRoots; i++) {
+      bucketStart[maxCount - childCount(roots[i]) + 1]++;
+    }
+    for (int i = 0; i <= maxCount; i++) {
+      bucketStart[i + 1] += bucketStart[i];
+    }
+
+    //
+    // Dropping them in name order keeps each bucket in name order:
+    //
+
+    int[] buildList = new int[numRoots];
+    for (int i = 0; i < numRoots; i++) {
+      int node = roots[i];
+      buildList[bucketStart[maxCount - childCount(node)]++] = node;
+    }
+    return (buildList);
+  }
+
+  /***************************************************************************
+  **
+  ** Put a node in the next row
+  */
+
+  void placeRow(int node) {
+    rowIndex_[node] = numPlaced_;
+    placeList_[numPlaced_++] = node;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Count down a child of a node just placed, queueing it once ready
+  */
+
+  void parentPlaced(int kid) {
+    if ((--pendingParents_[kid] == 0) && (rowIndex_[kid] == -1)) {
+      enqueueReady(kid);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Append a node to the ready queue for its class
+  */
+
+  void enqueueReady(int node) {
+    int nodeClass = graph_.getNodeClass(node);
+    nextReady_[node] = -1;
+    if (readyTail_[nodeClass] == -1) {
+      readyHead_[nodeClass] = node;
+    } else {
+      nextReady_[readyTail_[nodeClass]] = node;
+    }
+    readyTail_[nodeClass] = node;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Number of nodes on the ready queue for the class; zero for a class not
+  ** in the graph
+  */
+
+  int countReady(int nextClass) {
+    if ((nextClass < 0) || (nextClass > graph_.getMaxClass())) {
+      return (0);
+    }
+    int retval = 0;
+    for (int node = readyHead_[nextClass]; node != -1; node = nextReady_[node]) {
+      retval++;
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Empty the ready queue for the class, and return the nodes on it that are
+  ** not placed yet, in queue order. numReady is from countReady().
+  */
+
+  int[] drainReady(int nextClass, int numReady) {
+    int[] cands = new int[numReady];
+    if (numReady == 0) {
+      return (cands);
+    }
+    int numCand = 0;
+    for (int node = readyHead_[nextClass]; node != -1; node = nextReady_[node]) {
+      if (rowIndex_[node] == -1) {
+        cands[numCand++] = node;
+      }
+    }
+    readyHead_[nextClass] = -1;
+    readyTail_[nextClass] = -1;
+    return ((numCand == numReady) ? cands : Arrays.copyOf(cands, numCand));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Compare two candidate sort keys: negative if the first goes first. Lower
+  ** parent rows first, then (on a shared prefix) fewer parents, then more
+  ** children, then the higher (possibly reversed) name rank. This is the
+  ** reverse of SourcedNode.compareTo().
+  */
+
+  static int compareKeys(int[] rows1, int start1, int len1, int kids1, int rank1,
+                         int[] rows2, int start2, int len2, int kids2, int rank2) {
+    int min = Math.min(len1, len2);
+    for (int i = 0; i < min; i++) {
+      int row1 = rows1[start1 + i];
+      int row2 = rows2[start2 + i];
+      if (row1 != row2) {
+        return ((row1 < row2) ? -1 : 1);
+      }
+    }
+    if (len1 != len2) {
+      return ((len1 < len2) ? -1 : 1);
+    }
+    if (kids1 != kids2) {
+      return ((kids1 > kids2) ? -1 : 1);
+    }
+    return ((rank1 > rank2) ? -1 : ((rank1 < rank2) ? 1 : 0));
+  }
+}
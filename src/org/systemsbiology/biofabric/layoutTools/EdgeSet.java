@@ -0,0 +1,269 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** A set of directed links between int node IDs, each packed into a long with
+** the source in the high word. Open addressing with linear probing over a
+** table kept at most half full; the packed key gets a full 64-bit mix, so
+** A->B and B->A (or any run of neighboring IDs) land in unrelated slots.
+** Links are kept in the order they were first added.
+*/
+
+public class EdgeSet {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int INIT_SLOTS_ = 1024;
+  private final static int MAX_SLOTS_ = 1 << 30;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private long[] keys_;
+  private int size_;
+  private int[] slots_;
+  private int mask_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public EdgeSet() {
+    this(INIT_SLOTS_ / 2);
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor, sized to hold the expected number of links without growing
+  */
+
+  public EdgeSet(int expected) {
+    int numSlots = INIT_SLOTS_;
+    while ((numSlots < MAX_SLOTS_) && (numSlots / 2 < expected)) {
+      numSlots *= 2;
+    }
+    keys_ = new long[numSlots / 2];
+    size_ = 0;
+    slots_ = new int[numSlots];
+    mask_ = numSlots - 1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the number of links
+  */
+
+  public int size() {
+    return (size_);
+  }
+
+  /***************************************************************************
+  **
+  ** Add the link; answers false if it was already there
+  */
+
+  public boolean add(int src, int trg) {
+    long key = pack(src, trg);
+    int slot = hash(key) & mask_;
+    while (true) {
+      int entry = slots_[slot];
+      if (entry == 0) {
+        break;
+      }
+      if (keys_[entry - 1] == key) {
+        return (false);
+      }
+      slot = (slot + 1) & mask_;
+    }
+    add(key, slot);
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the link is present
+  */
+
+  public boolean contains(int src, int trg) {
+    long key = pack(src, trg);
+    int slot = hash(key) & mask_;
+    while (true) {
+      int entry = slots_[slot];
+      if (entry == 0) {
+        return (false);
+      }
+      if (keys_[entry - 1] == key) {
+        return (true);
+      }
+      slot = (slot + 1) & mask_;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Get the source of the i-th link added
+  */
+
+  public int getSrc(int index) {
+    return (srcOf(keys_[index]));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the target of the i-th link added
+  */
+
+  public int getTrg(int index) {
+    return (trgOf(keys_[index]));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the packed links, in the order they were added
+  */
+
+  public long[] toArray() {
+    return (Arrays.copyOf(keys_, size_));
+  }
+
+  /***************************************************************************
+  **
+  ** Empty the set, keeping its storage
+  */
+
+  public void clear() {
+    Arrays.fill(slots_, 0);
+    size_ = 0;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Pack a link into a long, source in the high word
+  */
+
+  public static long pack(int src, int trg) {
+    return ((((long)src) << 32) | (trg & 0xffffffffL));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the source of a packed link
+  */
+
+  public static int srcOf(long key) {
+    return ((int)(key >>> 32));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the target of a packed link
+  */
+
+  public static int trgOf(long key) {
+    return ((int)key);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Add a new key at the given empty slot
+  */
+
+  private void add(long key, int slot) {
+    if (size_ == keys_.length) {
+      if (slots_.length == MAX_SLOTS_) {
+        throw new IllegalStateException("Too many links");
+      }
+      keys_ = Arrays.copyOf(keys_, size_ * 2);
+    }
+    int id = size_++;
+    keys_[id] = key;
+    slots_[slot] = id + 1;
+
+    //
+    // Keep the table at most half full:
+    //
+
+    if (size_ * 2 > slots_.length) {
+      int[] newSlots = new int[slots_.length * 2];
+      int newMask = newSlots.length - 1;
+      for (int i = 0; i < size_; i++) {
+        int newSlot = hash(keys_[i]) & newMask;
+        while (newSlots[newSlot] != 0) {
+          newSlot = (newSlot + 1) & newMask;
+        }
+        newSlots[newSlot] = i + 1;
+      }
+      slots_ = newSlots;
+      mask_ = newMask;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The murmur3 64-bit finalizer, folded to an int
+  */
+
+  private static int hash(long key) {
+    key ^= (key >>> 33);
+    key *= 0xff51afd7ed558ccdL;
+    key ^= (key >>> 33);
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= (key >>> 33);
+    return ((int)key);
+  }
+}
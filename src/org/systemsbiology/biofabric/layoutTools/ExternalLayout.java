@@ -0,0 +1,978 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/****************************************************************************
+**
+** Semi-external version of the MultiModeDagLayout placement, for graphs
+** whose links do not fit in the heap. The per-node state (names, classes,
+** rows, degrees and file offsets) is still held in memory, so memory grows
+** with the node count; only the links stay on disk. The placement steps
+** themselves are the shared DagPlacement ones. Given the same input, the
+** NOA is the same as the in-memory layout's.
+**
+** The SIF is parsed once, with each link going into a sorted run: a buffer
+** is filled, sorted, deduplicated and written out when full. The runs are
+** merged (in passes of at most MAX_FAN_IN_ runs, so a bounded number of
+** them) into the parents of each node, in node order, on disk. The same
+** merge feeds a second sort that gives the children of each node. Only the
+** row offsets into the two files stay in memory.
+**
+** Placement then runs step by step as in memory. The nodes placed in a
+** step are visited in ID order to count down their children, and the
+** candidates for a step are visited in ID order to get their parent rows.
+** Every list gets read once in each direction, but this is not a bounded
+** number of sequential passes: each step is its own forward sweep, which
+** seeks past the lists of nodes not in the step. With many small steps the
+** reads are mostly random, and speed depends on the OS page cache holding
+** the two files. A step whose sort keys (the parent rows) will not fit in
+** the budget is sorted in pieces that are merged.
+*/
+
+public class ExternalLayout extends DagPlacement {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public final static long DEFAULT_BUDGET = 256L << 20;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static long MIN_BUDGET_ = 1L << 16;
+  private final static int MAX_FAN_IN_ = 64;
+  private final static int MIN_IO_BUF_ = 1 << 12;
+  private final static int MAX_IO_BUF_ = 1 << 20;
+  private final static int MAX_RUN_LONGS_ = 1 << 28;
+  private final static long CAND_BYTES_ = 40L;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private long budget_;
+  private File tempDir_;
+
+  private File workDir_;
+  private long[] parentStart_;
+  private long[] childStart_;
+  private AdjacencyFile parents_;
+  private AdjacencyFile children_;
+  private int[] scratch_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The budget covers the link buffers and sort keys; spill
+  ** files go in a fresh directory under tempDir (null for the default).
+  */
+
+  public ExternalLayout(long memoryBudget, File tempDir) {
+    if (memoryBudget < MIN_BUDGET_) {
+      throw new IllegalArgumentException("Memory budget below " + MIN_BUDGET_);
+    }
+    budget_ = memoryBudget;
+    tempDir_ = tempDir;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Set the variant to lay out
+  */
+
+  public void setVariant(LayoutVariant variant) {
+    variant_ = variant;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the nodes (names and classes, no links) of the last layout
+  */
+
+  public DagGraph getNodes() {
+    return (graph_);
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out the SIF file and return the nodes in row order. A cycle is an
+  ** IllegalStateException, as in placeAll().
+  */
+
+  public int[] layout(File sifIn, boolean showProgress) throws IOException {
+    workDir_ = (tempDir_ == null) ? Files.createTempDirectory("dagLayout").toFile()
+                                  : Files.createTempDirectory(tempDir_.toPath(), "dagLayout").toFile();
+    try {
+      startPlacement(buildAdjacency(sifIn));
+      placeAll(showProgress);
+      return (Arrays.copyOf(placeList_, numPlaced_));
+    } catch (UncheckedIOException uioex) {
+      throw uioex.getCause();
+    } finally {
+      if (parents_ != null) {
+        parents_.close();
+        parents_ = null;
+      }
+      if (children_ != null) {
+        children_.close();
+        children_ = null;
+      }
+      File[] leftovers = workDir_.listFiles();
+      if (leftovers != null) {
+        for (int i = 0; i < leftovers.length; i++) {
+          leftovers[i].delete();
+        }
+      }
+      workDir_.delete();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Run program
+  */
+
+  public static void main(String[] argv) {
+    long budget = DEFAULT_BUDGET;
+    File tempDir = null;
+    LayoutVariant variant = LayoutVariant.DEFAULT;
+    int argc = 0;
+    try {
+      while ((argc + 1 < argv.length) && argv[argc].startsWith("-")) {
+        if (argv[argc].equals("-memoryMB")) {
+          budget = Long.parseLong(argv[argc + 1]) << 20;
+        } else if (argv[argc].equals("-memoryKB")) {
+          budget = Long.parseLong(argv[argc + 1]) << 10;
+        } else if (argv[argc].equals("-tempDir")) {
+          tempDir = new File(argv[argc + 1]);
+        } else if (argv[argc].equals("-variant")) {
+          variant = LayoutVariant.parse(argv[argc + 1]);
+        } else {
+          break;
+        }
+        argc += 2;
+      }
+    } catch (IllegalArgumentException ex) {
+      argc = -1;
+    }
+
+    if ((argc == -1) || (budget < MIN_BUDGET_) || (argv.length - argc != 2)) {
+      System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.ExternalLayout [-memoryMB N | -memoryKB N] [-tempDir dir] [-variant classOrder[:revnames]] sifInfile noaOutfile");
+      return;
+    }
+
+    try {
+      ExternalLayout el = new ExternalLayout(budget, tempDir);
+      el.setVariant(variant);
+      int[] order = el.layout(new File(argv[argc]), true);
+      MultiModeDagLayout.writeNOA(argv[argc + 1], el.getNodes(), order);
+    } catch (Exception ex) {
+      System.err.println("Caught exception:" + ex);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Parse the SIF into sorted runs, then merge them into the parent and
+  ** child lists on disk. Returns the nodes, without links.
+  */
+
+  private DagGraph buildAdjacency(File sifIn) throws IOException {
+
+    final RunSorter byChild = new RunSorter(budget_ / 2);
+    DagGraph nodes = new SifReader().stream(sifIn, new SifReader.LinkSink() {
+      public void addLink(int child, int parent) {
+        try {
+          byChild.add(EdgeSet.pack(child, parent));
+        } catch (IOException ioex) {
+          throw new UncheckedIOException(ioex);
+        }
+      }
+    });
+    int numNodes = nodes.getNodeCount();
+
+    //
+    // Merged by child, the links are the parent lists. Flipped, they feed
+    // the sort for the child lists:
+    //
+
+    RunSorter byParent = new RunSorter(budget_ / 2);
+    File parentFile = new File(workDir_, "parents.adj");
+    parentStart_ = new long[numNodes + 1];
+    LongSource merged = byChild.finish();
+    DataOutputStream out = openRun(parentFile, ioBuffer(2));
+    try {
+      while (merged.hasNext()) {
+        long link = merged.next();
+        int child = EdgeSet.srcOf(link);
+        int parent = EdgeSet.trgOf(link);
+        out.writeInt(parent);
+        parentStart_[child + 1]++;
+        byParent.add(EdgeSet.pack(parent, child));
+      }
+    } finally {
+      out.close();
+      merged.close();
+    }
+
+    File childFile = new File(workDir_, "children.adj");
+    childStart_ = new long[numNodes + 1];
+    merged = byParent.finish();
+    out = openRun(childFile, ioBuffer(2));
+    try {
+      while (merged.hasNext()) {
+        long link = merged.next();
+        out.writeInt(EdgeSet.trgOf(link));
+        childStart_[EdgeSet.srcOf(link) + 1]++;
+      }
+    } finally {
+      out.close();
+      merged.close();
+    }
+
+    long maxList = 0L;
+    for (int i = 0; i < numNodes; i++) {
+      maxList = Math.max(maxList, Math.max(parentStart_[i + 1], childStart_[i + 1]));
+      parentStart_[i + 1] += parentStart_[i];
+      childStart_[i + 1] += childStart_[i];
+    }
+    scratch_ = new int[(int)maxList];
+    parents_ = new AdjacencyFile(parentFile, parentStart_, ioBuffer(2));
+    children_ = new AdjacencyFile(childFile, childStart_, ioBuffer(2));
+    return (nodes);
+  }
+
+  /***************************************************************************
+  **
+  ** Give the batch the next rows, then count down the children, sweeping
+  ** the child lists in ID order. Nodes in a batch cannot be parents of one
+  ** another, and the ready queues get sorted when drained, so the order the
+  ** children are seen in does not matter. A failed read goes up as an
+  ** UncheckedIOException, which layout() unwraps.
+  */
+
+  @Override
+  void addToPlaceList(int[] nextBatch) {
+    int numNext = nextBatch.length;
+    for (int i = 0; i < numNext; i++) {
+      placeRow(nextBatch[i]);
+    }
+    int[] byID = nextBatch.clone();
+    Arrays.sort(byID);
+    try {
+      for (int i = 0; i < numNext; i++) {
+        int numKids = children_.read(byID[i], scratch_);
+        for (int j = 0; j < numKids; j++) {
+          parentPlaced(scratch_[j]);
+        }
+      }
+    } catch (IOException ioex) {
+      throw new UncheckedIOException(ioex);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Drain the ready queue for the class, and sort it the way SourcedNode
+  ** does. Failed reads go up as in addToPlaceList().
+  */
+
+  @Override
+  int[] findNextCandidates(int nextClass) {
+    try {
+      return (sortCandidates(drainReady(nextClass, countReady(nextClass))));
+    } catch (IOException ioex) {
+      throw new UncheckedIOException(ioex);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Sort the candidates of a step
+  */
+
+  private int[] sortCandidates(int[] cands) throws IOException {
+    int numReady = cands.length;
+    Arrays.sort(cands);
+
+    //
+    // Cut the candidates (in ID order) into pieces whose keys fit the budget.
+    // Usually there is just one:
+    //
+
+    ArrayList<int[]> pieces = new ArrayList<int[]>();
+    int from = 0;
+    long bytes = 0L;
+    for (int i = 0; i < numReady; i++) {
+      long need = CAND_BYTES_ + (4L * parentCount(cands[i]));
+      if ((i > from) && (bytes + need > budget_)) {
+        pieces.add(sortPiece(cands, from, i));
+        from = i;
+        bytes = 0L;
+      }
+      bytes += need;
+    }
+    if (numReady > from) {
+      pieces.add(sortPiece(cands, from, numReady));
+    }
+    if (pieces.size() == 1) {
+      return (pieces.get(0));
+    }
+    return (mergePieces(pieces, numReady));
+  }
+
+  /***************************************************************************
+  **
+  ** Sort the candidates in cands[from, to), which fit in memory
+  */
+
+  private int[] sortPiece(int[] cands, int from, int to) throws IOException {
+    CandidateKeys keys = new CandidateKeys(cands, from, to);
+    int[] order = new int[to - from];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    IntSorter.sort(order, 0, order.length, keys);
+    int[] retval = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      retval[i] = keys.node_[order[i]];
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Merge sorted pieces of a step that did not fit in memory at once. Each
+  ** piece goes to disk with its keys, and the pieces are merged a key at a
+  ** time.
+  */
+
+  private int[] mergePieces(ArrayList<int[]> pieces, int numReady) throws IOException {
+    int numPieces = pieces.size();
+    int bufSize = ioBuffer(2 * numPieces);
+    File[] files = new File[numPieces];
+    CandidateReader[] readers = new CandidateReader[numPieces];
+    try {
+      for (int i = 0; i < numPieces; i++) {
+        int[] piece = pieces.get(i);
+        files[i] = File.createTempFile("step", ".run", workDir_);
+        CandidateKeys keys = new CandidateKeys(piece, 0, piece.length);
+        DataOutputStream out = openRun(files[i], bufSize);
+        try {
+          for (int j = 0; j < piece.length; j++) {
+            keys.write(out, j);
+          }
+        } finally {
+          out.close();
+        }
+        pieces.set(i, null);
+      }
+      for (int i = 0; i < numPieces; i++) {
+        readers[i] = new CandidateReader(files[i], bufSize);
+      }
+
+      int[] retval = new int[numReady];
+      for (int i = 0; i < numReady; i++) {
+        int best = -1;
+        for (int j = 0; j < numPieces; j++) {
+          if (readers[j].hasKey() && ((best == -1) || (readers[j].compare(readers[best]) < 0))) {
+            best = j;
+          }
+        }
+        retval[i] = readers[best].getNode();
+        readers[best].advance();
+      }
+      return (retval);
+    } finally {
+      for (int i = 0; i < numPieces; i++) {
+        if (readers[i] != null) {
+          readers[i].close();
+        }
+        if (files[i] != null) {
+          files[i].delete();
+        }
+      }
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Degrees, from the file offsets
+  */
+
+  @Override
+  int parentCount(int node) {
+    return ((int)(parentStart_[node + 1] - parentStart_[node]));
+  }
+
+  @Override
+  int childCount(int node) {
+    return ((int)(childStart_[node + 1] - childStart_[node]));
+  }
+
+  /***************************************************************************
+  **
+  ** Size of each I/O buffer when the given number share half the budget
+  */
+
+  private int ioBuffer(int numShares) {
+    long each = (budget_ / 2) / Math.max(1, numShares);
+    return ((int)Math.max(MIN_IO_BUF_, Math.min(MAX_IO_BUF_, each)));
+  }
+
+  /***************************************************************************
+  **
+  ** Open a run file for writing
+  */
+
+  private static DataOutputStream openRun(File file, int bufSize) throws IOException {
+    return (new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufSize)));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The sort keys for a set of candidates: each one's parent rows, sorted,
+  ** packed into one array, plus its child count and name rank. As an
+  ** IntComparator it orders the candidates' indices in step order.
+  */
+
+  private class CandidateKeys implements IntSorter.IntComparator {
+
+    int[] node_;
+    int[] rowStart_;
+    int[] rows_;
+    int[] kids_;
+    int[] rank_;
+
+    CandidateKeys(int[] cands, int from, int to) throws IOException {
+      int num = to - from;
+      int numNodes = graph_.getNodeCount();
+      node_ = Arrays.copyOfRange(cands, from, to);
+      rowStart_ = new int[num + 1];
+      for (int i = 0; i < num; i++) {
+        rowStart_[i + 1] = rowStart_[i] + parentCount(node_[i]);
+      }
+      rows_ = new int[rowStart_[num]];
+      kids_ = new int[num];
+      rank_ = new int[num];
+
+      //
+      // In ID order this is a forward sweep through the parent lists:
+      //
+
+      int[] byID = node_.clone();
+      int[] slot = new int[num];
+      boolean sorted = true;
+      for (int i = 0; i < num; i++) {
+        slot[i] = i;
+        sorted = sorted && ((i == 0) || (node_[i - 1] < node_[i]));
+      }
+      if (!sorted) {
+        final int[] ids = node_;
+        IntSorter.sort(slot, 0, num, new IntSorter.IntComparator() {
+          public int compare(int s1, int s2) {
+            return (Integer.compare(ids[s1], ids[s2]));
+          }
+        });
+        for (int i = 0; i < num; i++) {
+          byID[i] = node_[slot[i]];
+        }
+      }
+
+      for (int i = 0; i < num; i++) {
+        int which = slot[i];
+        int node = byID[i];
+        int start = rowStart_[which];
+        int numPar = parents_.read(node, scratch_);
+        for (int j = 0; j < numPar; j++) {
+          rows_[start + j] = rowIndex_[scratch_[j]];
+        }
+        Arrays.sort(rows_, start, start + numPar);
+        kids_[which] = childCount(node);
+        int rank = graph_.getNameRank(node);
+        rank_[which] = (variant_.isReverseNames()) ? numNodes - 1 - rank : rank;
+      }
+    }
+
+    public int compare(int key1, int key2) {
+      return (compare(key1, this, key2));
+    }
+
+    int compare(int key1, CandidateKeys other, int key2) {
+      return (compareKeys(rows_, rowStart_[key1], rowStart_[key1 + 1] - rowStart_[key1], kids_[key1], rank_[key1],
+                          other.rows_, other.rowStart_[key2], other.rowStart_[key2 + 1] - other.rowStart_[key2],
+                          other.kids_[key2], other.rank_[key2]));
+    }
+
+    void write(DataOutputStream out, int key) throws IOException {
+      int start = rowStart_[key];
+      int len = rowStart_[key + 1] - start;
+      out.writeInt(node_[key]);
+      out.writeInt(kids_[key]);
+      out.writeInt(rank_[key]);
+      out.writeInt(len);
+      for (int i = 0; i < len; i++) {
+        out.writeInt(rows_[start + i]);
+      }
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Reads back a sorted piece of a step, one key at a time
+  */
+
+  private static class CandidateReader {
+
+    private DataInputStream in_;
+    private long remaining_;
+    private boolean hasKey_;
+    private int node_;
+    private int kids_;
+    private int rank_;
+    private int len_;
+    private int[] rows_;
+
+    CandidateReader(File file, int bufSize) throws IOException {
+      in_ = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufSize));
+      remaining_ = file.length();
+      rows_ = new int[16];
+      advance();
+    }
+
+    boolean hasKey() {
+      return (hasKey_);
+    }
+
+    int getNode() {
+      return (node_);
+    }
+
+    int compare(CandidateReader other) {
+      return (compareKeys(rows_, 0, len_, kids_, rank_, other.rows_, 0, other.len_, other.kids_, other.rank_));
+    }
+
+    void advance() throws IOException {
+      hasKey_ = (remaining_ > 0);
+      if (!hasKey_) {
+        return;
+      }
+      node_ = in_.readInt();
+      kids_ = in_.readInt();
+      rank_ = in_.readInt();
+      len_ = in_.readInt();
+      if (rows_.length < len_) {
+        rows_ = new int[Math.max(len_, rows_.length * 2)];
+      }
+      for (int i = 0; i < len_; i++) {
+        rows_[i] = in_.readInt();
+      }
+      remaining_ -= 4L * (4 + len_);
+      return;
+    }
+
+    void close() throws IOException {
+      in_.close();
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** A node's list is ints [start[node], start[node + 1]) of the file. Reads
+  ** go through a window, so lists asked for in ID order are read
+  ** sequentially.
+  */
+
+  private static class AdjacencyFile {
+
+    private RandomAccessFile raf_;
+    private FileChannel chan_;
+    private long[] start_;
+    private ByteBuffer window_;
+    private long winStart_;
+    private int winLen_;
+
+    AdjacencyFile(File file, long[] start, int bufSize) throws IOException {
+      raf_ = new RandomAccessFile(file, "r");
+      chan_ = raf_.getChannel();
+      start_ = start;
+      window_ = ByteBuffer.allocate(bufSize & ~3);
+      winStart_ = 0L;
+      winLen_ = 0;
+    }
+
+    int read(int node, int[] dst) throws IOException {
+      long from = start_[node];
+      int len = (int)(start_[node + 1] - from);
+      if (len == 0) {
+        return (0);
+      }
+      ByteBuffer buf = window_;
+      if ((from < winStart_) || (from + len > winStart_ + winLen_)) {
+        if (4L * len > window_.capacity()) {
+          buf = ByteBuffer.allocate(4 * len);
+          fill(buf, from);
+          for (int i = 0; i < len; i++) {
+            dst[i] = buf.getInt(4 * i);
+          }
+          return (len);
+        }
+        fill(window_, from);
+        winStart_ = from;
+        winLen_ = window_.limit() / 4;
+      }
+      int base = (int)(from - winStart_);
+      for (int i = 0; i < len; i++) {
+        dst[i] = buf.getInt(4 * (base + i));
+      }
+      return (len);
+    }
+
+    void close() throws IOException {
+      raf_.close();
+      return;
+    }
+
+    private void fill(ByteBuffer buf, long fromInt) throws IOException {
+      buf.clear();
+      long pos = 4L * fromInt;
+      while (buf.hasRemaining()) {
+        int got = chan_.read(buf, pos);
+        if (got <= 0) {
+          break;
+        }
+        pos += got;
+      }
+      buf.flip();
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** A stream of sorted, distinct longs
+  */
+
+  private interface LongSource {
+    boolean hasNext();
+    long next() throws IOException;
+    void close() throws IOException;
+  }
+
+  /***************************************************************************
+  **
+  ** Sorts longs into runs on disk, dropping repeats, and merges the runs
+  */
+
+  private class RunSorter {
+
+    private long[] buf_;
+    private int fill_;
+    private ArrayList<File> runs_;
+    private long bytes_;
+
+    RunSorter(long bytes) {
+      bytes_ = bytes;
+      buf_ = new long[(int)Math.max(MIN_IO_BUF_, Math.min(MAX_RUN_LONGS_, bytes / 8))];
+      fill_ = 0;
+      runs_ = new ArrayList<File>();
+    }
+
+    void add(long key) throws IOException {
+      if (fill_ == buf_.length) {
+        spill();
+      }
+      buf_[fill_++] = key;
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Get everything added, in order. With no spills it comes straight from
+    ** the buffer; otherwise the runs are merged down to MAX_FAN_IN_ or fewer,
+    ** and the last merge is streamed.
+    */
+
+    LongSource finish() throws IOException {
+      if (runs_.isEmpty()) {
+        final int num = sortUnique();
+        final long[] keys = buf_;
+        buf_ = null;
+        return (new LongSource() {
+          private int next_ = 0;
+          public boolean hasNext() {
+            return (next_ < num);
+          }
+          public long next() {
+            return (keys[next_++]);
+          }
+          public void close() {
+          }
+        });
+      }
+      if (fill_ > 0) {
+        spill();
+      }
+      buf_ = null;
+      while (runs_.size() > MAX_FAN_IN_) {
+        ArrayList<File> merged = new ArrayList<File>();
+        for (int i = 0; i < runs_.size(); i += MAX_FAN_IN_) {
+          List<File> group = runs_.subList(i, Math.min(i + MAX_FAN_IN_, runs_.size()));
+          if (group.size() == 1) {
+            merged.add(group.get(0));
+            continue;
+          }
+          File out = File.createTempFile("links", ".run", workDir_);
+          LongSource src = new MergeSource(new ArrayList<File>(group), readBuffer(group.size()));
+          DataOutputStream dos = openRun(out, readBuffer(group.size()));
+          try {
+            while (src.hasNext()) {
+              dos.writeLong(src.next());
+            }
+          } finally {
+            dos.close();
+            src.close();
+          }
+          merged.add(out);
+        }
+        runs_ = merged;
+      }
+      return (new MergeSource(runs_, readBuffer(runs_.size())));
+    }
+
+    private int readBuffer(int numRuns) {
+      long each = bytes_ / (numRuns + 1);
+      return ((int)Math.max(MIN_IO_BUF_, Math.min(MAX_IO_BUF_, each)));
+    }
+
+    private int sortUnique() {
+      Arrays.sort(buf_, 0, fill_);
+      int write = 0;
+      for (int i = 0; i < fill_; i++) {
+        if ((write == 0) || (buf_[i] != buf_[write - 1])) {
+          buf_[write++] = buf_[i];
+        }
+      }
+      return (write);
+    }
+
+    private void spill() throws IOException {
+      int num = sortUnique();
+      File run = File.createTempFile("links", ".run", workDir_);
+      DataOutputStream out = openRun(run, MAX_IO_BUF_);
+      try {
+        for (int i = 0; i < num; i++) {
+          out.writeLong(buf_[i]);
+        }
+      } finally {
+        out.close();
+      }
+      runs_.add(run);
+      fill_ = 0;
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Merges sorted run files of longs, dropping repeats, with a binary heap
+  ** of the runs keyed on their next values. The files are deleted on close.
+  */
+
+  private static class MergeSource implements LongSource {
+
+    private List<File> files_;
+    private DataInputStream[] ins_;
+    private long[] left_;
+    private long[] head_;
+    private int[] heap_;
+    private int heapSize_;
+    private boolean haveLast_;
+    private long last_;
+    private boolean haveNext_;
+    private long next_;
+
+    MergeSource(List<File> files, int bufSize) throws IOException {
+      files_ = files;
+      int numRuns = files.size();
+      ins_ = new DataInputStream[numRuns];
+      left_ = new long[numRuns];
+      head_ = new long[numRuns];
+      heap_ = new int[numRuns];
+      heapSize_ = 0;
+      for (int i = 0; i < numRuns; i++) {
+        File file = files.get(i);
+        ins_[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufSize));
+        left_[i] = file.length() / 8;
+        if (pull(i)) {
+          heap_[heapSize_] = i;
+          siftUp(heapSize_++);
+        }
+      }
+      haveLast_ = false;
+      advance();
+    }
+
+    public boolean hasNext() {
+      return (haveNext_);
+    }
+
+    public long next() throws IOException {
+      long retval = next_;
+      advance();
+      return (retval);
+    }
+
+    public void close() throws IOException {
+      for (int i = 0; i < ins_.length; i++) {
+        ins_[i].close();
+        files_.get(i).delete();
+      }
+      return;
+    }
+
+    private void advance() throws IOException {
+      while (heapSize_ > 0) {
+        int run = heap_[0];
+        long val = head_[run];
+        if (pull(run)) {
+          siftDown(0);
+        } else {
+          heap_[0] = heap_[--heapSize_];
+          siftDown(0);
+        }
+        if (!haveLast_ || (val != last_)) {
+          haveLast_ = true;
+          last_ = val;
+          haveNext_ = true;
+          next_ = val;
+          return;
+        }
+      }
+      haveNext_ = false;
+      return;
+    }
+
+    private boolean pull(int run) throws IOException {
+      if (left_[run] == 0) {
+        return (false);
+      }
+      head_[run] = ins_[run].readLong();
+      left_[run]--;
+      return (true);
+    }
+
+    private void siftUp(int pos) {
+      int run = heap_[pos];
+      while (pos > 0) {
+        int parent = (pos - 1) >>> 1;
+        if (head_[heap_[parent]] <= head_[run]) {
+          break;
+        }
+        heap_[pos] = heap_[parent];
+        pos = parent;
+      }
+      heap_[pos] = run;
+      return;
+    }
+
+    private void siftDown(int pos) {
+      if (heapSize_ == 0) {
+        return;
+      }
+      int run = heap_[pos];
+      while (true) {
+        int kid = (2 * pos) + 1;
+        if (kid >= heapSize_) {
+          break;
+        }
+        if ((kid + 1 < heapSize_) && (head_[heap_[kid + 1]] < head_[heap_[kid]])) {
+          kid++;
+        }
+        if (head_[heap_[kid]] >= head_[run]) {
+          break;
+        }
+        heap_[pos] = heap_[kid];
+        pos = kid;
+      }
+      heap_[pos] = run;
+      return;
+    }
+  }
+}
@@ -1,4 +1,3 @@
-
 /*
 **    Copyright (C) 2003-2014 Institute for Systems Biology
 **                            Seattle, Washington, USA.
@@ -21,20 +20,38 @@
 package org.systemsbiology.biofabric.layoutTools;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /****************************************************************************
 **
 ** Generate Random N-Mode DAG
+**
+** Links always run from a lower-numbered node to a higher one, so the graph
+** is a DAG. The links are a uniform sample, without replacement, of all the
+** node pairs, packed as longs (source in the high word, target in the low).
+** The sample is drawn over a fixed binary tree of source-node ranges. Each
+** tree node splits its link count between its two halves with a
+** hypergeometric draw, and the leaves (single sources) pick their targets.
+** Every tree node seeds its own random stream from the run seed and its
+** range, so the work can be spread over any number of threads and the
+** result for a given seed is always the same. Node classes are a hash of
+** the seed and the node number, so they need no storage either.
 */
 
 public class GenRandNModeDAG {
@@ -47,6 +64,19 @@ public class GenRandNModeDAG {
 
 
   private final static int RAND_SEED_ = 17;
+  private final static int EXACT_SPLIT_ = 256;
+  private final static int TASK_CUTOFF_ = 1 << 16;
+  private final static long CLASS_SALT_ = 0x5DEECE66DL;
+  private final static int SINK_BUF_ = 1 << 20;
+  private final static int MAX_LINE_NUMS_ = 6 * 11 + 6;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private long seed_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -66,6 +96,16 @@ public class GenRandNModeDAG {
   */
 
   public GenRandNModeDAG() {
+    this(RAND_SEED_);
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor with a given seed
+  */
+
+  public GenRandNModeDAG(long seed) {
+    seed_ = seed;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -76,12 +116,12 @@ public class GenRandNModeDAG {
 
   /***************************************************************************
   **
-  ** Output sif file
+  ** Output sif file (gzipped if the name ends in ".gz")
   */
 
   public void writeSif(Set<Link> linkList, String outfile, String tag, Map<String, Integer> nodeToClass) throws IOException {
 
-    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outfile), "UTF-8")));
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(GzipStreams.openOutput(outfile), "UTF-8")));
     Iterator<Link> nit = linkList.iterator();
     while (nit.hasNext()) {
       Link toks = nit.next();
@@ -89,10 +129,10 @@ public class GenRandNModeDAG {
       Integer cl = nodeToClass.get(toks.getTrg());
       out.print(toks.getSrc() + "@" + cs.toString());
       out.print("\t");
-    
+
       out.print(cs);
       out.print("-");
-     
+
       out.print(tag);
       out.print("-");
       out.print(cl);
@@ -103,73 +143,540 @@ public class GenRandNModeDAG {
     return;
   }
 
+  /***************************************************************************
+  **
+  ** Output a graph snapshot for packed links; the same graph reading the
+  ** writeSif() output would give. Node IDs follow first appearance, as in
+  ** the SIF.
+  */
+
+  public void writeSnapshot(long[] links, String outfile, int numModes) throws IOException {
+    int maxNode = -1;
+    for (int i = 0; i < links.length; i++) {
+      maxNode = Math.max(maxNode, Math.max(packedSrc(links[i]), packedTrg(links[i])));
+    }
+    int[] ids = new int[maxNode + 1];
+    Arrays.fill(ids, -1);
+    int[] nodes = new int[maxNode + 1];
+    int numUsed = 0;
+    int[] linkSrc = new int[links.length];
+    int[] linkTrg = new int[links.length];
+    for (int i = 0; i < links.length; i++) {
+      int src = packedSrc(links[i]);
+      int trg = packedTrg(links[i]);
+      if (ids[src] == -1) {
+        nodes[numUsed] = src;
+        ids[src] = numUsed++;
+      }
+      if (ids[trg] == -1) {
+        nodes[numUsed] = trg;
+        ids[trg] = numUsed++;
+      }
+      linkSrc[i] = ids[trg];
+      linkTrg[i] = ids[src];
+    }
+    ids = null;
+
+    String[] names = new String[numUsed];
+    int[] classes = new int[numUsed];
+    for (int i = 0; i < numUsed; i++) {
+      classes[i] = nodeClass(nodes[i], numModes);
+      names[i] = nodes[i] + "@" + classes[i];
+    }
+    DagGraph graph = new DagGraph(names, classes, linkSrc, linkTrg, links.length);
+    GraphSnapshot.write(graph, new File(outfile));
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Output sif file for packed links (gzipped if the name ends in ".gz")
+  */
+
+  public void writeSif(long[] links, String outfile, String tag, int numModes) throws IOException {
+    SifSink sink = new SifSink(outfile, tag, numModes);
+    try {
+      for (int i = 0; i < links.length; i++) {
+        sink.writeLink(packedSrc(links[i]), packedTrg(links[i]));
+      }
+    } finally {
+      sink.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Generate the DAG straight to a sif file. Links are drawn one source at a
+  ** time, in source order, and written as they are produced, so memory is
+  ** O(nodes) no matter how many links there are. The file is the same as
+  ** makeDaDag() followed by writeSif() gives for the same seed.
+  */
+
+  public void streamDaDagSif(String outfile, String tag, int numNodes, long numLinks, int numModes) throws IOException {
+    if ((numNodes < 0) || (numLinks < 0) || (numLinks > pairs(numNodes, 0, numNodes))) {
+      throw new IllegalArgumentException();
+    }
+    SifSink sink = new SifSink(outfile, tag, numModes);
+    try {
+      streamRange(sink, numNodes, 0, numNodes, numLinks);
+    } finally {
+      sink.close();
+    }
+    return;
+  }
+
   /***************************************************************************
   **
   ** Make the DAG
   */
 
   public void makeDaDag(Map<String, Integer> nodeToClass, Set<Link> links, int numNodes, int numLinks, int numModes) {
-    Random randGen = new Random(RAND_SEED_);
-    while (links.size() < numLinks) {
-      int randie1 = randGen.nextInt(numNodes);
-      int randie2 = randie1;
-      while (randie2 == randie1) {
-        randie2 = randGen.nextInt(numNodes);
-      }
-      if (randie1 > randie2) {
-        int tempoRand = randie1;
-        randie1 = randie2;
-        randie2 = tempoRand;
-      }
-      Integer c4n = nodeToClass.get(Integer.toString(randie1));
-      if (c4n == null) {
-        c4n = Integer.valueOf(randGen.nextInt(numModes));
-        nodeToClass.put(Integer.toString(randie1), c4n);
-      }
-      c4n = nodeToClass.get(Integer.toString(randie2));
-      if (c4n == null) {
-        c4n = Integer.valueOf(randGen.nextInt(numModes));
-        nodeToClass.put(Integer.toString(randie2), c4n);
-      }
-      Link daLink = new Link(Integer.toString(randie1), Integer.toString(randie2));
-      links.add(daLink);
+    long[] packed = makeDaDag(numNodes, numLinks, 1);
+    for (int i = 0; i < packed.length; i++) {
+      int src = packedSrc(packed[i]);
+      int trg = packedTrg(packed[i]);
+      String srcName = Integer.toString(src);
+      String trgName = Integer.toString(trg);
+      nodeToClass.put(srcName, Integer.valueOf(nodeClass(src, numModes)));
+      nodeToClass.put(trgName, Integer.valueOf(nodeClass(trg, numModes)));
+      links.add(new Link(srcName, trgName));
     }
     return;
   }
+
+  /***************************************************************************
+  **
+  ** Make the DAG as packed links, sorted by source and then target
+  */
+
+  public long[] makeDaDag(int numNodes, int numLinks, int numThreads) {
+    if ((numNodes < 0) || (numLinks < 0) || (numLinks > pairs(numNodes, 0, numNodes)) || (numThreads < 1)) {
+      throw new IllegalArgumentException();
+    }
+    long[] links = new long[numLinks];
+    if (numLinks == 0) {
+      return (links);
+    }
+    if (numThreads == 1) {
+      sampleRange(links, numNodes, 0, numNodes, 0, numLinks);
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(numThreads);
+      try {
+        pool.invoke(new SampleTask(links, numNodes, 0, numNodes, 0, numLinks));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return (links);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the class of a node
+  */
+
+  public int nodeClass(int node, int numModes) {
+    return ((int)Math.floorMod(mix64(seed_ ^ (CLASS_SALT_ + node)), (long)numModes));
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC STATIC METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Get the source of a packed link
+  */
+
+  public static int packedSrc(long link) {
+    return (EdgeSet.srcOf(link));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the target of a packed link
+  */
+
+  public static int packedTrg(long link) {
+    return (EdgeSet.trgOf(link));
+  }
+
   /***************************************************************************
   **
   ** Run program
   */
 
   public static void main(String[] argv) {
-  	  	
-  	if (argv.length != 4) {
-  		System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.GenRandNModeDAG numModes numNodes numLinks outfileName");
+
+    int numThreads = 1;
+    long seed = RAND_SEED_;
+    boolean stream = false;
+    boolean snapshot = false;
+    int argc = 0;
+    try {
+      while ((argc < argv.length) && argv[argc].startsWith("-")) {
+        if (argv[argc].equals("-stream")) {
+          stream = true;
+          argc++;
+          continue;
+        } else if (argv[argc].equals("-snapshot")) {
+          snapshot = true;
+          argc++;
+          continue;
+        } else if (argc + 1 >= argv.length) {
+          break;
+        } else if (argv[argc].equals("-threads")) {
+          numThreads = Integer.parseInt(argv[argc + 1]);
+        } else if (argv[argc].equals("-seed")) {
+          seed = Long.parseLong(argv[argc + 1]);
+        } else {
+          break;
+        }
+        argc += 2;
+      }
+    } catch (NumberFormatException ex) {
+      argc = -1;
+    }
+
+  	if ((argc == -1) || (numThreads < 1) || (stream && snapshot) || (argv.length - argc != 4)) {
+  		System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.GenRandNModeDAG [-threads N [-snapshot] | -stream] [-seed S] numModes numNodes numLinks outfileName");
   		return;
   	}
-  	
+
   	try {
-  		GenRandNModeDAG cp = new GenRandNModeDAG();
-      String sifOut = argv[3];
-      int numModes = Integer.parseInt(argv[0]);
-      int numNodes = Integer.parseInt(argv[1]);
-      int numLinks = Integer.parseInt(argv[2]);
-      Map<String, Integer> nodeToClass = new HashMap<String, Integer>();
-      HashSet<Link> links = new HashSet<Link>();
-      cp.makeDaDag(nodeToClass, links, numNodes, numLinks, numModes);
-      cp.writeSif(links, sifOut, "to", nodeToClass);
+  		GenRandNModeDAG cp = new GenRandNModeDAG(seed);
+      String sifOut = argv[argc + 3];
+      int numModes = Integer.parseInt(argv[argc]);
+      int numNodes = Integer.parseInt(argv[argc + 1]);
+      if (stream) {
+        cp.streamDaDagSif(sifOut, "to", numNodes, Long.parseLong(argv[argc + 2]), numModes);
+      } else {
+        int numLinks = Integer.parseInt(argv[argc + 2]);
+        long[] links = cp.makeDaDag(numNodes, numLinks, numThreads);
+        if (snapshot) {
+          cp.writeSnapshot(links, sifOut, numModes);
+        } else {
+          cp.writeSif(links, sifOut, "to", numModes);
+        }
+      }
     } catch (NumberFormatException ex) {
-      System.err.println("Illegal non-numeric argument: " + argv[0] + " " + argv[1] + " " + argv[2]);
+      System.err.println("Illegal non-numeric argument: " + argv[argc] + " " + argv[argc + 1] + " " + argv[argc + 2]);
       return;
     } catch (Exception ex) {
       System.err.println("Caught exception:" + ex);
     }
     return;
   }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Sample k links with sources in [lo, hi) into links[offset, offset + k)
+  */
+
+  private void sampleRange(long[] links, int numNodes, int lo, int hi, int offset, int k) {
+    if (k == 0) {
+      return;
+    }
+    if (hi - lo == 1) {
+      sampleTargets(links, numNodes, lo, offset, k);
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    int kLeft = (int)splitCount(numNodes, lo, mid, hi, k);
+    sampleRange(links, numNodes, lo, mid, offset, kLeft);
+    sampleRange(links, numNodes, mid, hi, offset + kLeft, k - kLeft);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Stream k links with sources in [lo, hi) to the sink
+  */
+
+  private void streamRange(SifSink sink, int numNodes, int lo, int hi, long k) throws IOException {
+    if (k == 0) {
+      return;
+    }
+    if (hi - lo == 1) {
+      long[] targets = sink.scratch((int)k);
+      sampleTargets(targets, numNodes, lo, 0, (int)k);
+      for (int i = 0; i < k; i++) {
+        sink.writeLink(lo, packedTrg(targets[i]));
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    long kLeft = splitCount(numNodes, lo, mid, hi, k);
+    streamRange(sink, numNodes, lo, mid, kLeft);
+    streamRange(sink, numNodes, mid, hi, k - kLeft);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decide how many of the k links in [lo, hi) have sources in [lo, mid). This
+  ** is a hypergeometric draw: exact for small k, and a clamped normal
+  ** approximation for large k.
+  */
+
+  private long splitCount(int numNodes, int lo, int mid, int hi, long k) {
+    SplittableRandom rand = new SplittableRandom(seedFor(lo, hi));
+    long popLeft = pairs(numNodes, lo, mid);
+    long pop = pairs(numNodes, lo, hi);
+    if (popLeft == 0) {
+      return (0);
+    } else if (popLeft == pop) {
+      return (k);
+    }
+
+    if (k <= EXACT_SPLIT_) {
+      long left = 0;
+      double remLeft = popLeft;
+      double remAll = pop;
+      for (int i = 0; i < k; i++) {
+        if (rand.nextDouble() * remAll < remLeft) {
+          left++;
+          remLeft--;
+        }
+        remAll--;
+      }
+      return (left);
+    }
+
+    double frac = (double)popLeft / (double)pop;
+    double mean = k * frac;
+    double var = k * frac * (1.0 - frac) * ((double)(pop - k) / (double)(pop - 1));
+    double u1 = 1.0 - rand.nextDouble();
+    double u2 = rand.nextDouble();
+    double gauss = Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+    long left = Math.round(mean + (Math.sqrt(var) * gauss));
+    left = Math.max(left, k - (pop - popLeft));
+    left = Math.max(left, 0L);
+    left = Math.min(left, Math.min(k, popLeft));
+    return (left);
+  }
+
+  /***************************************************************************
+  **
+  ** Pick k distinct targets above src, written in order to links[offset, offset + k)
+  */
+
+  private void sampleTargets(long[] links, int numNodes, int src, int offset, int k) {
+    SplittableRandom rand = new SplittableRandom(seedFor(src, src + 1));
+    int numTrg = numNodes - 1 - src;
+    long high = ((long)src) << 32;
+
+    //
+    // Dense: one pass of selection sampling over all the candidates:
+    //
+
+    if ((long)k * 4 >= numTrg) {
+      int need = k;
+      for (int i = 0; (i < numTrg) && (need > 0); i++) {
+        if (rand.nextInt(numTrg - i) < need) {
+          links[offset++] = high | (src + 1 + i);
+          need--;
+        }
+      }
+      return;
+    }
+
+    //
+    // Sparse: draw until there are k different targets, throwing out repeats,
+    // then sort them:
+    //
+
+    EdgeSet drawn = new EdgeSet(k);
+    int end = offset + k;
+    while (drawn.size() < k) {
+      drawn.add(src, src + 1 + rand.nextInt(numTrg));
+    }
+    for (int i = 0; i < k; i++) {
+      links[offset + i] = high | drawn.getTrg(i);
+    }
+    Arrays.sort(links, offset, end);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Seed for the random stream of a tree node
+  */
+
+  private long seedFor(int lo, int hi) {
+    return (mix64(seed_ + mix64((((long)lo) << 32) | (hi & 0xffffffffL))));
+  }
+
+  /***************************************************************************
+  **
+  ** Number of (lower, higher) node pairs with the lower node in [lo, hi)
+  */
+
+  private static long pairs(int numNodes, int lo, int hi) {
+    long count = hi - lo;
+    return ((count * (numNodes - 1)) - ((((long)lo + hi - 1) * count) / 2));
+  }
+
+  /***************************************************************************
+  **
+  ** The SplitMix64 finalizer
+  */
+
+  private static long mix64(long val) {
+    val = (val ^ (val >>> 30)) * 0xbf58476d1ce4e5b9L;
+    val = (val ^ (val >>> 27)) * 0x94d049bb133111ebL;
+    return (val ^ (val >>> 31));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Writes sif lines for links straight into a byte buffer on a file channel
+  ** (or a channel over the gzip stream), formatting the numbers by hand so
+  ** no Strings get made per link
+  */
+
+  private class SifSink {
+
+    private OutputStream stream_;
+    private WritableByteChannel chan_;
+    private ByteBuffer buf_;
+    private byte[] tag_;
+    private byte[] eol_;
+    private byte[] digits_;
+    private int numModes_;
+    private long[] scratch_;
+
+    SifSink(String outfile, String tag, int numModes) throws IOException {
+      stream_ = GzipStreams.openOutput(outfile);
+      if (stream_ instanceof FileOutputStream) {
+        chan_ = ((FileOutputStream)stream_).getChannel();
+      } else {
+        chan_ = Channels.newChannel(stream_);
+      }
+      buf_ = ByteBuffer.allocateDirect(SINK_BUF_);
+      tag_ = tag.getBytes(StandardCharsets.UTF_8);
+      eol_ = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+      digits_ = new byte[10];
+      numModes_ = numModes;
+      scratch_ = new long[0];
+    }
+
+    long[] scratch(int size) {
+      if (scratch_.length < size) {
+        scratch_ = new long[Math.max(size, scratch_.length * 2)];
+      }
+      return (scratch_);
+    }
+
+    void writeLink(int src, int trg) throws IOException {
+      if (buf_.remaining() < (tag_.length + eol_.length + MAX_LINE_NUMS_)) {
+        flush();
+      }
+      int cs = nodeClass(src, numModes_);
+      int cl = nodeClass(trg, numModes_);
+      putInt(src);
+      buf_.put((byte)'@');
+      putInt(cs);
+      buf_.put((byte)'\t');
+      putInt(cs);
+      buf_.put((byte)'-');
+      buf_.put(tag_);
+      buf_.put((byte)'-');
+      putInt(cl);
+      buf_.put((byte)'\t');
+      putInt(trg);
+      buf_.put((byte)'@');
+      putInt(cl);
+      buf_.put(eol_);
+      return;
+    }
+
+    void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        stream_.close();
+      }
+      return;
+    }
+
+    private void putInt(int val) {
+      if (val < 0) {
+        buf_.put((byte)'-');
+        val = -val;
+      }
+      int count = 0;
+      do {
+        digits_[count++] = (byte)('0' + (val % 10));
+        val /= 10;
+      } while (val > 0);
+      while (count > 0) {
+        buf_.put(digits_[--count]);
+      }
+      return;
+    }
+
+    private void flush() throws IOException {
+      buf_.flip();
+      while (buf_.hasRemaining()) {
+        chan_.write(buf_);
+      }
+      buf_.clear();
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Samples a source range, forking the two halves until the pieces are small
+  */
+
+  private class SampleTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private long[] links_;
+    private int numNodes_;
+    private int lo_;
+    private int hi_;
+    private int offset_;
+    private int k_;
+
+    SampleTask(long[] links, int numNodes, int lo, int hi, int offset, int k) {
+      links_ = links;
+      numNodes_ = numNodes;
+      lo_ = lo;
+      hi_ = hi;
+      offset_ = offset;
+      k_ = k;
+    }
+
+    @Override
+    protected void compute() {
+      if ((k_ <= TASK_CUTOFF_) || (hi_ - lo_ == 1)) {
+        sampleRange(links_, numNodes_, lo_, hi_, offset_, k_);
+        return;
+      }
+      int mid = (lo_ + hi_) >>> 1;
+      int kLeft = (int)splitCount(numNodes_, lo_, mid, hi_, k_);
+      invokeAll(new SampleTask(links_, numNodes_, lo_, mid, offset_, kLeft),
+                new SampleTask(links_, numNodes_, mid, hi_, offset_ + kLeft, k_ - kLeft));
+      return;
+    }
+  }
 }
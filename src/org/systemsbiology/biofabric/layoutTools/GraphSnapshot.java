@@ -0,0 +1,548 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/****************************************************************************
+**
+** Binary snapshot of a DagGraph, so a graph that has not changed can be
+** loaded without parsing the SIF again. Everything is little-endian:
+**
+**   header:  magic (8 bytes), version, node count N, link count L, CRC32
+**            of everything after the header (ints), then the length of the
+**            name bytes (a long)
+**   ints:    node classes [N], nodes in name order [N],
+**            parent row starts [N + 1], parents [L],
+**            child row starts [N + 1], children [L]
+**   bytes:   the UTF-8 names back to back, padded to a multiple of four
+**   ints:    name starts [N + 1]
+**
+** The degrees are the differences of the row starts. Loading maps the file
+** and bulk-copies each section into its array; nothing gets parsed, sorted
+** or deduplicated. The checksum is checked first, so a damaged file fails
+** with an IOException instead of loading as the wrong graph.
+**
+** Like PNG, the magic starts with a byte that is not ASCII (nor can it start
+** a UTF-8 character), so a SIF file never looks like a snapshot.
+*/
+
+public class GraphSnapshot {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static byte[] MAGIC_ = new byte[] {(byte)0x89, 'B', 'F', 'D', 'G', '\r', '\n', 0x1a};
+  private final static int VERSION_ = 2;
+  private final static int HEADER_BYTES_ = 32;
+  private final static int VERSION_AT_ = 8;
+  private final static int NODES_AT_ = 12;
+  private final static int LINKS_AT_ = 16;
+  private final static int CRC_AT_ = 20;
+  private final static int NAME_BYTES_AT_ = 24;
+  private final static int SINK_BUF_ = 1 << 20;
+  private final static int WINDOW_INTS_ = 1 << 28;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not instantiated
+  */
+
+  private GraphSnapshot() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the file starts like a snapshot
+  */
+
+  public static boolean isSnapshot(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      ByteBuffer buf = ByteBuffer.allocate(MAGIC_.length);
+      FileChannel chan = raf.getChannel();
+      while (buf.hasRemaining()) {
+        if (chan.read(buf) == -1) {
+          return (false);
+        }
+      }
+      buf.flip();
+      return (buf.equals(ByteBuffer.wrap(MAGIC_)));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Write the graph as a snapshot
+  */
+
+  public static void write(DagGraph graph, File file) throws IOException {
+    int numNodes = graph.getNodeCount();
+    int numLinks = graph.getLinkCount();
+    NodeInterner pool = graph.getNamePool();
+    int nameBytes = pool.getNameStart(numNodes);
+    SnapshotSink sink = new SnapshotSink(file);
+    try {
+      sink.putBytes(MAGIC_, MAGIC_.length);
+      sink.putInt(VERSION_);
+      sink.putInt(numNodes);
+      sink.putInt(numLinks);
+      sink.putInt(0);
+      sink.putLong(nameBytes);
+      sink.startChecksum();
+
+      for (int i = 0; i < numNodes; i++) {
+        sink.putInt(graph.getNodeClass(i));
+      }
+      for (int i = 0; i < numNodes; i++) {
+        sink.putInt(graph.getNodeForNameRank(i));
+      }
+      for (int i = 0; i < numNodes; i++) {
+        sink.putInt(graph.parentsStart(i));
+      }
+      sink.putInt(numLinks);
+      for (int i = 0; i < numLinks; i++) {
+        sink.putInt(graph.getParent(i));
+      }
+      for (int i = 0; i < numNodes; i++) {
+        sink.putInt(graph.childrenStart(i));
+      }
+      sink.putInt(numLinks);
+      for (int i = 0; i < numLinks; i++) {
+        sink.putInt(graph.getChild(i));
+      }
+
+      //
+      // The name pool is already the names back to back in ID order, so it
+      // goes out as it is:
+      //
+
+      sink.putBytes(pool.getArena(), nameBytes);
+      for (long i = nameBytes; (i & 3) != 0; i++) {
+        sink.putBytes(new byte[1], 1);
+      }
+      for (int i = 0; i <= numNodes; i++) {
+        sink.putInt(pool.getNameStart(i));
+      }
+      sink.finishChecksum(CRC_AT_);
+    } finally {
+      sink.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Load a snapshot
+  */
+
+  public static DagGraph read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel chan = raf.getChannel();
+      ByteBuffer header = readHeader(chan, file);
+      int numNodes = header.getInt(NODES_AT_);
+      int numLinks = header.getInt(LINKS_AT_);
+      long nameBytes = header.getLong(NAME_BYTES_AT_);
+
+      long pos = HEADER_BYTES_;
+      int[] nodeClass = readInts(chan, pos, numNodes);
+      pos += 4L * numNodes;
+      int[] byName = readInts(chan, pos, numNodes);
+      pos += 4L * numNodes;
+      int[] parentStart = readInts(chan, pos, numNodes + 1);
+      pos += 4L * (numNodes + 1);
+      int[] parents = readInts(chan, pos, numLinks);
+      pos += 4L * numLinks;
+      int[] childStart = readInts(chan, pos, numNodes + 1);
+      pos += 4L * (numNodes + 1);
+      int[] children = readInts(chan, pos, numLinks);
+      pos += 4L * numLinks;
+      NodeInterner names = readNames(chan, pos, numNodes, nameBytes);
+
+      //
+      // The checksum already passed; this is so a snapshot written wrong
+      // cannot send the layout out of bounds:
+      //
+
+      checkRows(parentStart, parents, numNodes, numLinks);
+      checkRows(childStart, children, numNodes, numLinks);
+      boolean[] seen = new boolean[numNodes];
+      for (int i = 0; i < numNodes; i++) {
+        int node = byName[i];
+        if ((nodeClass[i] < 0) || (node < 0) || (node >= numNodes) || seen[node]) {
+          throw new IOException("Corrupt snapshot");
+        }
+        seen[node] = true;
+      }
+      return (new DagGraph(names, nodeClass, parentStart, parents, childStart, children, byName));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Load a snapshot into direct buffers instead of heap arrays. The file is
+  ** copied window by window, so the heap only ever holds the names.
+  */
+
+  public static OffHeapGraph readOffHeap(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    OffHeapGraph.IntStore[] stores = new OffHeapGraph.IntStore[6];
+    boolean built = false;
+    try {
+      FileChannel chan = raf.getChannel();
+      ByteBuffer header = readHeader(chan, file);
+      int numNodes = header.getInt(NODES_AT_);
+      int numLinks = header.getInt(LINKS_AT_);
+      long nameBytes = header.getLong(NAME_BYTES_AT_);
+
+      long pos = HEADER_BYTES_;
+      int[] sizes = new int[] {numNodes, numNodes, numNodes + 1, numLinks, numNodes + 1, numLinks};
+      for (int i = 0; i < stores.length; i++) {
+        stores[i] = readStore(chan, pos, sizes[i]);
+        pos += 4L * sizes[i];
+      }
+      NodeInterner names = readNames(chan, pos, numNodes, nameBytes);
+
+      OffHeapGraph.IntStore nodeClass = stores[0];
+      OffHeapGraph.IntStore byName = stores[1];
+      checkRows(stores[2], stores[3], numNodes, numLinks);
+      checkRows(stores[4], stores[5], numNodes, numLinks);
+      boolean[] seen = new boolean[numNodes];
+      int maxClass = -1;
+      for (int i = 0; i < numNodes; i++) {
+        int node = byName.get(i);
+        int nodeCl = nodeClass.get(i);
+        if ((nodeCl < 0) || (node < 0) || (node >= numNodes) || seen[node]) {
+          throw new IOException("Corrupt snapshot");
+        }
+        seen[node] = true;
+        maxClass = Math.max(maxClass, nodeCl);
+      }
+      OffHeapGraph retval = new OffHeapGraph(names, maxClass, nodeClass, byName,
+                                             stores[2], stores[3], stores[4], stores[5]);
+      built = true;
+      return (retval);
+    } finally {
+      if (!built) {
+        for (int i = 0; i < stores.length; i++) {
+          OffHeapGraph.IntStore.free(stores[i]);
+        }
+      }
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Convert a SIF file to a snapshot
+  */
+
+  public static void main(String[] argv) {
+    int numThreads = 1;
+    int argc = 0;
+    try {
+      if ((argc + 1 < argv.length) && argv[argc].equals("-threads")) {
+        numThreads = Integer.parseInt(argv[argc + 1]);
+        argc += 2;
+      }
+    } catch (NumberFormatException ex) {
+      argc = -1;
+    }
+
+    if ((argc == -1) || (numThreads < 1) || (argv.length - argc != 2)) {
+      System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.GraphSnapshot [-threads N] sifInfile snapshotOutfile");
+      return;
+    }
+
+    try {
+      DagGraph graph = new SifReader(numThreads).read(new File(argv[argc]));
+      write(graph, new File(argv[argc + 1]));
+    } catch (Exception ex) {
+      System.err.println("Caught exception:" + ex);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Copy ints out of the file, mapping a window at a time
+  */
+
+  private static int[] readInts(FileChannel chan, long pos, int count) throws IOException {
+    int[] retval = new int[count];
+    int done = 0;
+    while (done < count) {
+      int num = Math.min(count - done, WINDOW_INTS_);
+      ByteBuffer window = chan.map(FileChannel.MapMode.READ_ONLY, pos + (4L * done), 4L * num);
+      window.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(retval, done, num);
+      done += num;
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Check the header and checksum against the file, and hand the header back
+  ** for the counts
+  */
+
+  private static ByteBuffer readHeader(FileChannel chan, File file) throws IOException {
+    long size = chan.size();
+    if (size < HEADER_BYTES_) {
+      throw new IOException("Not a graph snapshot: " + file);
+    }
+    ByteBuffer header = chan.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES_).order(ByteOrder.LITTLE_ENDIAN);
+    if (!header.slice(0, MAGIC_.length).equals(ByteBuffer.wrap(MAGIC_))) {
+      throw new IOException("Not a graph snapshot: " + file);
+    }
+    if (header.getInt(VERSION_AT_) != VERSION_) {
+      throw new IOException("Unsupported snapshot version " + header.getInt(VERSION_AT_));
+    }
+    int numNodes = header.getInt(NODES_AT_);
+    int numLinks = header.getInt(LINKS_AT_);
+    long nameBytes = header.getLong(NAME_BYTES_AT_);
+    if ((numNodes < 0) || (numLinks < 0) || (nameBytes < 0) || (nameBytes > Integer.MAX_VALUE)) {
+      throw new IOException("Bad snapshot header");
+    }
+    long paddedNames = (nameBytes + 3) & ~3L;
+    long numInts = (5L * numNodes) + 3L + (2L * numLinks);
+    if (size != HEADER_BYTES_ + (4L * numInts) + paddedNames) {
+      throw new IOException("Snapshot is the wrong size");
+    }
+
+    CRC32 crc = new CRC32();
+    long pos = HEADER_BYTES_;
+    while (pos < size) {
+      long len = Math.min(size - pos, 4L * WINDOW_INTS_);
+      crc.update(chan.map(FileChannel.MapMode.READ_ONLY, pos, len));
+      pos += len;
+    }
+    if ((int)crc.getValue() != header.getInt(CRC_AT_)) {
+      throw new IOException("Snapshot checksum does not match: " + file);
+    }
+    return (header);
+  }
+
+  /***************************************************************************
+  **
+  ** Read the name bytes at pos, and the name starts after them, into a pool
+  */
+
+  private static NodeInterner readNames(FileChannel chan, long pos, int numNodes, long nameBytes) throws IOException {
+    byte[] arena = new byte[(int)nameBytes];
+    if (nameBytes > 0) {
+      chan.map(FileChannel.MapMode.READ_ONLY, pos, nameBytes).get(arena);
+    }
+    int[] nameStart = readInts(chan, pos + ((nameBytes + 3) & ~3L), numNodes + 1);
+    checkRows(nameStart, null, numNodes, (int)nameBytes);
+    return (new NodeInterner(arena, nameStart, numNodes));
+  }
+
+  /***************************************************************************
+  **
+  ** Copy ints out of the file into a direct store, a window at a time
+  */
+
+  private static OffHeapGraph.IntStore readStore(FileChannel chan, long pos, int count) throws IOException {
+    OffHeapGraph.IntStore retval = new OffHeapGraph.IntStore(count);
+    int done = 0;
+    while (done < count) {
+      int num = Math.min(count - done, WINDOW_INTS_);
+      ByteBuffer window = chan.map(FileChannel.MapMode.READ_ONLY, pos + (4L * done), 4L * num);
+      retval.put(done, window.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+      done += num;
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** checkRows() for rows held in direct stores
+  */
+
+  private static void checkRows(OffHeapGraph.IntStore starts, OffHeapGraph.IntStore entries,
+                                int numNodes, int total) throws IOException {
+    if ((starts.get(0) != 0) || (starts.get(numNodes) != total)) {
+      throw new IOException("Corrupt snapshot");
+    }
+    for (int i = 0; i < numNodes; i++) {
+      if (starts.get(i + 1) < starts.get(i)) {
+        throw new IOException("Corrupt snapshot");
+      }
+    }
+    for (int i = 0; i < total; i++) {
+      int entry = entries.get(i);
+      if ((entry < 0) || (entry >= numNodes)) {
+        throw new IOException("Corrupt snapshot");
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Check row starts run from 0 to the total without going backwards, and
+  ** (if given) that the row entries are node IDs
+  */
+
+  private static void checkRows(int[] starts, int[] entries, int numNodes, int total) throws IOException {
+    if ((starts[0] != 0) || (starts[numNodes] != total)) {
+      throw new IOException("Corrupt snapshot");
+    }
+    for (int i = 0; i < numNodes; i++) {
+      if (starts[i + 1] < starts[i]) {
+        throw new IOException("Corrupt snapshot");
+      }
+    }
+    if (entries != null) {
+      for (int i = 0; i < total; i++) {
+        if ((entries[i] < 0) || (entries[i] >= numNodes)) {
+          throw new IOException("Corrupt snapshot");
+        }
+      }
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Writes little-endian values through a direct buffer onto a file channel,
+  ** keeping a CRC32 of what goes out once startChecksum() is called
+  */
+
+  private static class SnapshotSink {
+
+    private FileOutputStream stream_;
+    private FileChannel chan_;
+    private ByteBuffer buf_;
+    private CRC32 crc_;
+
+    SnapshotSink(File file) throws IOException {
+      stream_ = new FileOutputStream(file);
+      chan_ = stream_.getChannel();
+      buf_ = ByteBuffer.allocateDirect(SINK_BUF_).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void putInt(int val) throws IOException {
+      if (buf_.remaining() < 4) {
+        flush();
+      }
+      buf_.putInt(val);
+      return;
+    }
+
+    void putLong(long val) throws IOException {
+      if (buf_.remaining() < 8) {
+        flush();
+      }
+      buf_.putLong(val);
+      return;
+    }
+
+    void putBytes(byte[] bytes, int count) throws IOException {
+      int done = 0;
+      while (done < count) {
+        if (!buf_.hasRemaining()) {
+          flush();
+        }
+        int num = Math.min(count - done, buf_.remaining());
+        buf_.put(bytes, done, num);
+        done += num;
+      }
+      return;
+    }
+
+    void startChecksum() throws IOException {
+      flush();
+      crc_ = new CRC32();
+      return;
+    }
+
+    void finishChecksum(long at) throws IOException {
+      flush();
+      ByteBuffer val = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      val.putInt(0, (int)crc_.getValue());
+      while (val.hasRemaining()) {
+        at += chan_.write(val, at);
+      }
+      return;
+    }
+
+    void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        stream_.close();
+      }
+      return;
+    }
+
+    private void flush() throws IOException {
+      buf_.flip();
+      if (crc_ != null) {
+        crc_.update(buf_.duplicate());
+      }
+      while (buf_.hasRemaining()) {
+        chan_.write(buf_);
+      }
+      buf_.clear();
+      return;
+    }
+  }
+}
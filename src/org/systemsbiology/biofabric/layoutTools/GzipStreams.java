@@ -0,0 +1,267 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/****************************************************************************
+**
+** Transparent gzip for the files the tools read and write. Input is gzipped
+** if it starts with the gzip magic bytes, whatever its name; output is
+** gzipped if its name ends in ".gz".
+*/
+
+public class GzipStreams {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public final static String SUFFIX = ".gz";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int IO_BUF_ = 1 << 16;
+  private final static int MAGIC_0_ = 0x1f;
+  private final static int MAGIC_1_ = 0x8b;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not instantiated
+  */
+
+  private GzipStreams() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the file starts with the gzip magic bytes
+  */
+
+  public static boolean isGzipped(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      return ((in.read() == MAGIC_0_) && (in.read() == MAGIC_1_));
+    } finally {
+      in.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if output to the file will be gzipped
+  */
+
+  public static boolean isGzipName(String outfile) {
+    return (outfile.endsWith(SUFFIX));
+  }
+
+  /***************************************************************************
+  **
+  ** Open the file for reading, inflating it if it is gzipped
+  */
+
+  public static InputStream openInput(File infile) throws IOException {
+    if (isGzipped(infile)) {
+      return (new GZIPInputStream(new FileInputStream(infile), IO_BUF_));
+    }
+    return (new FileInputStream(infile));
+  }
+
+  /***************************************************************************
+  **
+  ** Open the file for writing, gzipped if the name ends in ".gz"
+  */
+
+  public static OutputStream openOutput(String outfile) throws IOException {
+    if (isGzipName(outfile)) {
+      return (new GZIPOutputStream(new FileOutputStream(outfile), IO_BUF_));
+    }
+    return (new FileOutputStream(outfile));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Inflates a gzipped file on its own thread, handing the bytes over in
+  ** blocks, so the reader can be parsing one block while the next is being
+  ** inflated. A fixed set of blocks goes round between the two threads, so
+  ** the inflater can only get that far ahead.
+  */
+
+  public static class InflatePump {
+
+    private final static ByteBuffer END_ = ByteBuffer.allocate(0);
+
+    private BlockingQueue<ByteBuffer> free_;
+    private BlockingQueue<ByteBuffer> full_;
+    private Thread thread_;
+    private volatile IOException error_;
+    private boolean done_;
+
+    /***************************************************************************
+    **
+    ** Constructor. Starts inflating right away.
+    */
+
+    public InflatePump(final File infile, int blockSize, int numBlocks) {
+      free_ = new ArrayBlockingQueue<ByteBuffer>(numBlocks);
+      full_ = new ArrayBlockingQueue<ByteBuffer>(numBlocks + 1);
+      for (int i = 0; i < numBlocks; i++) {
+        free_.add(ByteBuffer.allocate(blockSize));
+      }
+      done_ = false;
+      thread_ = new Thread(new Runnable() {
+        public void run() {
+          inflate(infile);
+        }
+      }, "inflate " + infile.getName());
+      thread_.setDaemon(true);
+      thread_.start();
+    }
+
+    /***************************************************************************
+    **
+    ** Get the next block of bytes, or null at the end. Hand each block back
+    ** with release() once it has been used.
+    */
+
+    public ByteBuffer take() throws IOException {
+      if (done_) {
+        return (null);
+      }
+      ByteBuffer block;
+      try {
+        block = full_.take();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+      if (block == END_) {
+        done_ = true;
+        if (error_ != null) {
+          throw error_;
+        }
+        return (null);
+      }
+      return (block);
+    }
+
+    /***************************************************************************
+    **
+    ** Hand a block back for reuse
+    */
+
+    public void release(ByteBuffer block) {
+      block.clear();
+      free_.add(block);
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Stop inflating (if the reader quit early) and wait for the thread
+    */
+
+    public void close() {
+      thread_.interrupt();
+      try {
+        thread_.join();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Fill blocks until the input runs out. There is always room for the end
+    ** marker, since only the blocks in circulation can be ahead of it.
+    */
+
+    private void inflate(File infile) {
+      try {
+        InputStream in = new GZIPInputStream(new FileInputStream(infile), IO_BUF_);
+        try {
+          while (true) {
+            ByteBuffer block = free_.take();
+            byte[] bytes = block.array();
+            int fill = 0;
+            while (fill < bytes.length) {
+              int got = in.read(bytes, fill, bytes.length - fill);
+              if (got < 0) {
+                break;
+              }
+              fill += got;
+            }
+            block.limit(fill);
+            if (fill > 0) {
+              full_.put(block);
+            }
+            if (fill < bytes.length) {
+              break;
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException ioex) {
+        error_ = ioex;
+      } catch (InterruptedException iex) {
+        return;
+      }
+      full_.add(END_);
+      return;
+    }
+  }
+}
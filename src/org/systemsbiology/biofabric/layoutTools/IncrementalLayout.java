@@ -0,0 +1,664 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** Redoes a layout after the graph changes, reusing the previous order where
+** it cannot have changed. The layout places nodes in steps (see placeAll()
+** in MultiModeDagLayout), and the step a node goes in depends only on its
+** class and the steps of its parents, so every step can be found up front.
+** The order within a step depends only on how the parents of its nodes
+** compare by row, their child counts and their names. A node with the same
+** step, parents and child count as before, whose parents have all kept
+** their old order relative to each other, keeps its old order against the
+** other such nodes. Only the rest get sorted, and are merged in with the
+** layout's own comparison, giving the same order as a full layout.
+*/
+
+public class IncrementalLayout {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int MAX_CYCLES_SHOWN_ = 10;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private MultiModeDagLayout engine_;
+  private int keptRows_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public IncrementalLayout() {
+    engine_ = new MultiModeDagLayout();
+    keptRows_ = 0;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Lay out the new graph, given the order of the default layout of the old
+  ** graph
+  */
+
+  public int[] relayout(DagGraph oldGraph, int[] oldOrder, DagGraph newGraph) {
+    return (relayout(oldGraph, oldOrder, newGraph, LayoutVariant.DEFAULT));
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out the new graph, given the order of the old graph for the same
+  ** variant. If the old order is not a layout of the old graph, or the number
+  ** of classes changed (which renumbers every step), this is a full layout.
+  */
+
+  public int[] relayout(DagGraph oldGraph, int[] oldOrder, DagGraph newGraph, LayoutVariant variant) {
+    keptRows_ = 0;
+    int numClass = newGraph.getMaxClass() + 1;
+    int[] oldSteps = (oldGraph.getMaxClass() + 1 == numClass) ? orderSteps(oldGraph, oldOrder, variant) : null;
+    if (oldSteps == null) {
+      return (engine_.layout(newGraph, variant));
+    }
+    int[] newSteps = graphSteps(newGraph, variant);
+    int numOld = oldOrder.length;
+    int numNew = newGraph.getNodeCount();
+    int[] oldToNew = new int[numOld];
+    int[] newToOld = new int[numNew];
+    matchNames(oldGraph, newGraph, oldToNew, newToOld);
+    int[] oldRow = new int[numOld];
+    for (int i = 0; i < numOld; i++) {
+      oldRow[oldOrder[i]] = i;
+    }
+
+    //
+    // Unchanged nodes, walked in old row order, come out in step order. The
+    // changed ones get sorted by step:
+    //
+
+    boolean[] changed = new boolean[numNew];
+    int[] scratch = new int[numNew];
+    Arrays.fill(scratch, -1);
+    int numChanged = 0;
+    for (int i = 0; i < numNew; i++) {
+      int old = newToOld[i];
+      if ((old == -1) || changed(oldGraph, old, oldSteps, newGraph, i, newSteps, oldToNew, scratch)) {
+        changed[i] = true;
+        numChanged++;
+      }
+    }
+    int[] same = new int[numNew - numChanged];
+    int numSame = 0;
+    for (int i = 0; i < numOld; i++) {
+      int node = oldToNew[oldOrder[i]];
+      if ((node != -1) && !changed[node]) {
+        same[numSame++] = node;
+      }
+    }
+    long[] changedBySteps = new long[numChanged];
+    numChanged = 0;
+    for (int i = 0; i < numNew; i++) {
+      if (changed[i]) {
+        changedBySteps[numChanged++] = (((long)newSteps[i]) << 32) | i;
+      }
+    }
+    Arrays.sort(changedBySteps);
+
+    //
+    // Go step by step. Steady nodes are old nodes that keep their old order
+    // relative to each other. An unchanged node whose parents are all steady
+    // must keep its old place among the other such nodes of its step, since
+    // all its sort keys compare the same way; those are the anchors of the
+    // step. Everything else in the step is sorted and merged in, and is still
+    // steady if it stayed in the same step and lands between the anchors it
+    // sat between before:
+    //
+
+    engine_.setVariant(variant);
+    engine_.setGraph(newGraph);
+    boolean[] unsteady = new boolean[numNew];
+    boolean[] anchor = new boolean[numNew];
+    int[] upperRow = new int[numNew];
+    int sameAt = 0;
+    int changedAt = 0;
+    int[] inOrder = new int[numNew];
+    int[] unordered = new int[numNew];
+    while ((sameAt < numSame) || (changedAt < numChanged)) {
+      int step = Integer.MAX_VALUE;
+      if (sameAt < numSame) {
+        step = newSteps[same[sameAt]];
+      }
+      if (changedAt < numChanged) {
+        step = Math.min(step, (int)(changedBySteps[changedAt] >>> 32));
+      }
+      int numIn = 0;
+      int numUn = 0;
+      while ((sameAt < numSame) && (newSteps[same[sameAt]] == step)) {
+        int node = same[sameAt++];
+        if (steadyParents(newGraph, node, unsteady)) {
+          anchor[node] = true;
+          inOrder[numIn++] = node;
+        } else {
+          unordered[numUn++] = node;
+        }
+      }
+      while ((changedAt < numChanged) && ((int)(changedBySteps[changedAt] >>> 32) == step)) {
+        unordered[numUn++] = (int)changedBySteps[changedAt++];
+      }
+      int[] stepNodes = (numUn == 0) ? Arrays.copyOf(inOrder, numIn)
+                                     : engine_.orderStep(Arrays.copyOf(inOrder, numIn), Arrays.copyOf(unordered, numUn), step < numClass);
+      engine_.placeRows(stepNodes);
+      keptRows_ += numIn;
+      if (numUn == 0) {
+        continue;
+      }
+      int upper = Integer.MAX_VALUE;
+      for (int i = stepNodes.length - 1; i >= 0; i--) {
+        upperRow[i] = upper;
+        if (anchor[stepNodes[i]]) {
+          upper = oldRow[newToOld[stepNodes[i]]];
+        }
+      }
+      int lastRow = -1;
+      for (int i = 0; i < stepNodes.length; i++) {
+        int node = stepNodes[i];
+        int old = newToOld[node];
+        if (old == -1) {
+          continue;
+        }
+        int row = oldRow[old];
+        if (anchor[node] || ((oldSteps[old] == step) && (row > lastRow) && (row < upperRow[i]))) {
+          lastRow = row;
+        } else {
+          unsteady[node] = true;
+        }
+      }
+    }
+    return (engine_.getPlaceList());
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of nodes the last relayout kept in their old order
+  ** without sorting
+  */
+
+  public int getKeptRows() {
+    return (keptRows_);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Apply a change to a graph: drop the removed links, then add the added
+  ** ones. All three are in the backwards sense the SifReader gives. Nodes
+  ** left with no links are gone, as they would be from the SIF file. A node
+  ** that already exists must keep its class.
+  */
+
+  public static DagGraph applyDelta(DagGraph base, DagGraph added, DagGraph removed) {
+    int numBase = base.getNodeCount();
+    int[] removedToBase = new int[removed.getNodeCount()];
+    int[] addedToBase = new int[added.getNodeCount()];
+    matchNames(removed, base, removedToBase, null);
+    matchNames(added, base, addedToBase, null);
+
+    EdgeSet gone = new EdgeSet(removed.getLinkCount());
+    int numRemoved = removed.getNodeCount();
+    for (int i = 0; i < numRemoved; i++) {
+      int end = removed.parentsEnd(i);
+      for (int j = removed.parentsStart(i); j < end; j++) {
+        int kid = removedToBase[i];
+        int par = removedToBase[removed.getParent(j)];
+        if ((kid != -1) && (par != -1)) {
+          gone.add(kid, par);
+        }
+      }
+    }
+
+    //
+    // Nodes only in the added graph go after the base nodes:
+    //
+
+    int numAdded = added.getNodeCount();
+    int[] addedIds = new int[numAdded];
+    int numNodes = numBase;
+    for (int i = 0; i < numAdded; i++) {
+      int node = addedToBase[i];
+      if (node == -1) {
+        addedIds[i] = numNodes++;
+      } else {
+        addedIds[i] = node;
+        if (base.getNodeClass(node) != added.getNodeClass(i)) {
+          throw new IllegalArgumentException("Class " + added.getNodeClass(i) + " for " + added.getNodeName(i) +
+                                             " does not match " + base.getNodeClass(node));
+        }
+      }
+    }
+
+    EdgeSet links = new EdgeSet(base.getLinkCount() + added.getLinkCount());
+    for (int i = 0; i < numBase; i++) {
+      int end = base.parentsEnd(i);
+      for (int j = base.parentsStart(i); j < end; j++) {
+        int par = base.getParent(j);
+        if (!gone.contains(i, par)) {
+          links.add(i, par);
+        }
+      }
+    }
+    for (int i = 0; i < numAdded; i++) {
+      int end = added.parentsEnd(i);
+      for (int j = added.parentsStart(i); j < end; j++) {
+        links.add(addedIds[i], addedIds[added.getParent(j)]);
+      }
+    }
+
+    //
+    // Renumber, skipping nodes with no links left:
+    //
+
+    int numLinks = links.size();
+    boolean[] linked = new boolean[numNodes];
+    for (int i = 0; i < numLinks; i++) {
+      linked[links.getSrc(i)] = true;
+      linked[links.getTrg(i)] = true;
+    }
+    int[] newId = new int[numNodes];
+    int count = 0;
+    for (int i = 0; i < numNodes; i++) {
+      newId[i] = (linked[i]) ? count++ : -1;
+    }
+    String[] names = new String[count];
+    int[] classes = new int[count];
+    for (int i = 0; i < numBase; i++) {
+      if (newId[i] != -1) {
+        names[newId[i]] = base.getNodeName(i);
+        classes[newId[i]] = base.getNodeClass(i);
+      }
+    }
+    for (int i = 0; i < numAdded; i++) {
+      int node = newId[addedIds[i]];
+      if ((addedToBase[i] == -1) && (node != -1)) {
+        names[node] = added.getNodeName(i);
+        classes[node] = added.getNodeClass(i);
+      }
+    }
+    int[] linkSrc = new int[numLinks];
+    int[] linkTrg = new int[numLinks];
+    for (int i = 0; i < numLinks; i++) {
+      linkSrc[i] = newId[links.getSrc(i)];
+      linkTrg[i] = newId[links.getTrg(i)];
+    }
+    return (new DagGraph(names, classes, linkSrc, linkTrg, numLinks));
+  }
+
+  /***************************************************************************
+  **
+  ** Read the row order of the graph nodes from a NOA file (which may be
+  ** gzipped)
+  */
+
+  public static int[] readNOA(File infile, DagGraph graph) throws IOException {
+    int numNodes = graph.getNodeCount();
+    int[] retval = new int[numNodes];
+    boolean[] seen = new boolean[numNodes];
+    int row = 0;
+    BufferedReader in = new BufferedReader(new InputStreamReader(GzipStreams.openInput(infile), StandardCharsets.UTF_8));
+    try {
+      String line = in.readLine();
+      if ((line == null) || !line.trim().equals("Node Row")) {
+        throw new IOException("Missing NOA header");
+      }
+      while ((line = in.readLine()) != null) {
+        if (line.trim().equals("")) {
+          continue;
+        }
+        int eq = line.lastIndexOf(" = ");
+        int node = (eq == -1) ? -1 : findName(graph, line.substring(0, eq));
+        if ((node == -1) || seen[node] || (row == numNodes) || !line.substring(eq + 3).trim().equals(Integer.toString(row))) {
+          throw new IOException("Bad NOA line " + (row + 2) + ": " + line);
+        }
+        seen[node] = true;
+        retval[row++] = node;
+      }
+    } finally {
+      in.close();
+    }
+    if (row != numNodes) {
+      throw new IOException("NOA has " + row + " nodes; graph has " + numNodes);
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Run program
+  */
+
+  public static void main(String[] argv) {
+
+    int numThreads = 1;
+    String addedIn = null;
+    String removedIn = null;
+    int argc = 0;
+    try {
+      while ((argc < argv.length) && argv[argc].startsWith("-") && (argc + 1 < argv.length)) {
+        if (argv[argc].equals("-threads")) {
+          numThreads = Integer.parseInt(argv[argc + 1]);
+        } else if (argv[argc].equals("-added")) {
+          addedIn = argv[argc + 1];
+        } else if (argv[argc].equals("-removed")) {
+          removedIn = argv[argc + 1];
+        } else {
+          break;
+        }
+        argc += 2;
+      }
+    } catch (NumberFormatException ex) {
+      argc = -1;
+    }
+
+    if ((argc == -1) || (numThreads < 1) || (argv.length - argc != 3)) {
+      System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.IncrementalLayout [-threads N] [-added addedSif] [-removed removedSif] oldSifInfile oldNoaInfile noaOutfile");
+      return;
+    }
+
+    try {
+      SifReader reader = new SifReader(numThreads);
+      DagGraph oldGraph = reader.read(new File(argv[argc]));
+      int[] oldOrder = readNOA(new File(argv[argc + 1]), oldGraph);
+      DagGraph none = new DagGraph(new String[0], new int[0], new int[0], new int[0], 0);
+      DagGraph added = (addedIn == null) ? none : reader.read(new File(addedIn));
+      DagGraph removed = (removedIn == null) ? none : reader.read(new File(removedIn));
+      DagGraph newGraph = applyDelta(oldGraph, added, removed);
+
+      StrongComponents sccs = new StrongComponents(newGraph);
+      if (sccs.hasCycles()) {
+        System.err.println("Input is not a DAG: " + sccs.describeCycles(MAX_CYCLES_SHOWN_));
+        throw new IllegalStateException("Input has cycles");
+      }
+
+      IncrementalLayout inc = new IncrementalLayout();
+      int[] order = inc.relayout(oldGraph, oldOrder, newGraph);
+      System.out.println("Kept the order of " + inc.getKeptRows() + " of " + order.length + " nodes; sorted " +
+                         (order.length - inc.getKeptRows()));
+      MultiModeDagLayout.writeNOA(argv[argc + 2], newGraph, order);
+    } catch (Exception ex) {
+      System.err.println("Caught exception:" + ex);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if every parent of the node is steady
+  */
+
+  private static boolean steadyParents(DagGraph graph, int node, boolean[] unsteady) {
+    int end = graph.parentsEnd(node);
+    for (int i = graph.parentsStart(node); i < end; i++) {
+      if (unsteady[graph.getParent(i)]) {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if a node has a different step, child count, or parents
+  */
+
+  private static boolean changed(DagGraph oldGraph, int oldNode, int[] oldSteps,
+                                 DagGraph newGraph, int newNode, int[] newSteps,
+                                 int[] oldToNew, int[] scratch) {
+    if ((oldSteps[oldNode] != newSteps[newNode]) ||
+        (oldGraph.getChildCount(oldNode) != newGraph.getChildCount(newNode)) ||
+        (oldGraph.getParentCount(oldNode) != newGraph.getParentCount(newNode))) {
+      return (true);
+    }
+
+    //
+    // Same count, so the same parents if every old one is among the new ones.
+    // The scratch array gets tagged with the new parents:
+    //
+
+    int end = newGraph.parentsEnd(newNode);
+    for (int i = newGraph.parentsStart(newNode); i < end; i++) {
+      scratch[newGraph.getParent(i)] = newNode;
+    }
+    end = oldGraph.parentsEnd(oldNode);
+    for (int i = oldGraph.parentsStart(oldNode); i < end; i++) {
+      int par = oldToNew[oldGraph.getParent(i)];
+      if ((par == -1) || (scratch[par] != newNode)) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+
+  /***************************************************************************
+  **
+  ** The step each node is placed in: a root goes in the step for its class,
+  ** anything else in the first round step for its class after all its
+  ** parents have gone. Computed in topological order; nodes on or below a
+  ** cycle can never be placed.
+  */
+
+  private static int[] graphSteps(DagGraph graph, LayoutVariant variant) {
+    int numNodes = graph.getNodeCount();
+    int[] classPos = classPositions(graph.getMaxClass(), variant);
+    int[] pending = new int[numNodes];
+    int[] queue = new int[numNodes];
+    int tail = 0;
+    for (int i = 0; i < numNodes; i++) {
+      pending[i] = graph.getParentCount(i);
+      if (pending[i] == 0) {
+        queue[tail++] = i;
+      }
+    }
+    int[] steps = new int[numNodes];
+    for (int head = 0; head < tail; head++) {
+      int node = queue[head];
+      steps[node] = stepFor(graph, node, steps, classPos);
+      int end = graph.childrenEnd(node);
+      for (int j = graph.childrenStart(node); j < end; j++) {
+        int kid = graph.getChild(j);
+        if (--pending[kid] == 0) {
+          queue[tail++] = kid;
+        }
+      }
+    }
+    if (tail < numNodes) {
+      throw new IllegalStateException((numNodes - tail) + " nodes can never be placed");
+    }
+    return (steps);
+  }
+
+  /***************************************************************************
+  **
+  ** The steps of the nodes, following a previous layout order. Null if the
+  ** order cannot be a layout of the graph: not every node once, a node before
+  ** one of its parents, or steps out of order.
+  */
+
+  private static int[] orderSteps(DagGraph graph, int[] order, LayoutVariant variant) {
+    int numNodes = graph.getNodeCount();
+    if (order.length != numNodes) {
+      return (null);
+    }
+    int[] classPos = classPositions(graph.getMaxClass(), variant);
+    boolean[] placed = new boolean[numNodes];
+    int[] steps = new int[numNodes];
+    int lastStep = 0;
+    for (int i = 0; i < numNodes; i++) {
+      int node = order[i];
+      if ((node < 0) || (node >= numNodes) || placed[node]) {
+        return (null);
+      }
+      int end = graph.parentsEnd(node);
+      for (int j = graph.parentsStart(node); j < end; j++) {
+        if (!placed[graph.getParent(j)]) {
+          return (null);
+        }
+      }
+      steps[node] = stepFor(graph, node, steps, classPos);
+      if (steps[node] < lastStep) {
+        return (null);
+      }
+      lastStep = steps[node];
+      placed[node] = true;
+    }
+    return (steps);
+  }
+
+  /***************************************************************************
+  **
+  ** The step for a node, given the steps of its parents
+  */
+
+  private static int stepFor(DagGraph graph, int node, int[] steps, int[] classPos) {
+    int numClass = classPos.length;
+    int pos = classPos[graph.getNodeClass(node)];
+    int end = graph.parentsEnd(node);
+    int start = graph.parentsStart(node);
+    if (start == end) {
+      return (pos);
+    }
+    int maxParent = 0;
+    for (int j = start; j < end; j++) {
+      maxParent = Math.max(maxParent, steps[graph.getParent(j)]);
+    }
+    int round = Math.max(1, (maxParent - pos) / numClass + 1);
+    return ((round * numClass) + pos);
+  }
+
+  /***************************************************************************
+  **
+  ** Where each class sits in the variant order
+  */
+
+  private static int[] classPositions(int maxClass, LayoutVariant variant) {
+    int[] order = variant.getClassOrder(maxClass);
+    int[] retval = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      retval[order[i]] = i;
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** For each node of one graph, find the node with the same name in the
+  ** other, or -1, and the same the other way if that array is given. Both
+  ** graphs are walked in name order, so no map is built.
+  */
+
+  private static void matchNames(DagGraph from, DagGraph to, int[] fromToTo, int[] toToFrom) {
+    int numFrom = from.getNodeCount();
+    int numTo = to.getNodeCount();
+    Arrays.fill(fromToTo, -1);
+    if (toToFrom != null) {
+      Arrays.fill(toToFrom, -1);
+    }
+    int i = 0;
+    int j = 0;
+    while ((i < numFrom) && (j < numTo)) {
+      int fromNode = from.getNodeForNameRank(i);
+      int toNode = to.getNodeForNameRank(j);
+      int cmp = from.getNodeName(fromNode).compareTo(to.getNodeName(toNode));
+      if (cmp < 0) {
+        i++;
+      } else if (cmp > 0) {
+        j++;
+      } else {
+        fromToTo[fromNode] = toNode;
+        if (toToFrom != null) {
+          toToFrom[toNode] = fromNode;
+        }
+        i++;
+        j++;
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Find a node by name, with a binary search over the name ranks
+  */
+
+  private static int findName(DagGraph graph, String name) {
+    int lo = 0;
+    int hi = graph.getNodeCount() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int node = graph.getNodeForNameRank(mid);
+      int cmp = graph.getNodeName(node).compareTo(name);
+      if (cmp == 0) {
+        return (node);
+      } else if (cmp < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return (-1);
+  }
+}
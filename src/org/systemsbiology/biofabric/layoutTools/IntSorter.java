@@ -0,0 +1,310 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************************
+**
+** Stable sort of an int array (typically node IDs) by a comparator on the
+** ints, so big arrays of IDs get sorted without boxing each one. Equal
+** elements keep their order, as with Arrays.sort() on objects. The parallel
+** version splits the same merge sort over a fork-join pool, merging big runs
+** in parallel too, and gives the same result.
+*/
+
+public class IntSorter {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int INSERTION_ = 16;
+  private final static int SORT_LEAF_ = 1 << 13;
+  private final static int MERGE_LEAF_ = 1 << 13;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not instantiated
+  */
+
+  private IntSorter() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER INTERFACES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Orders two ints: negative if the first goes first
+  */
+
+  public interface IntComparator {
+    public int compare(int val1, int val2);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Sort vals[from, to)
+  */
+
+  public static void sort(int[] vals, int from, int to, IntComparator cmp) {
+    int[] aux = new int[to - from];
+    System.arraycopy(vals, from, aux, 0, to - from);
+    mergeSort(aux, vals, from, to, -from, cmp);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Sort vals[from, to) on the pool. The comparator gets called from many
+  ** threads at once.
+  */
+
+  public static void parallelSort(int[] vals, int from, int to, IntComparator cmp, ForkJoinPool pool) {
+    if (to - from < SORT_LEAF_) {
+      sort(vals, from, to, cmp);
+      return;
+    }
+    int[] aux = new int[to - from];
+    System.arraycopy(vals, from, aux, 0, to - from);
+    pool.invoke(new SortTask(aux, vals, from, to, -from, cmp));
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Merge sort dest[low, high), using src (offset by off) as the other
+  ** buffer. src must start out holding the same values as dest.
+  */
+
+  private static void mergeSort(int[] src, int[] dest, int low, int high, int off, IntComparator cmp) {
+    int length = high - low;
+    if (length < INSERTION_) {
+      for (int i = low + 1; i < high; i++) {
+        int val = dest[i];
+        int j = i;
+        while ((j > low) && (cmp.compare(dest[j - 1], val) > 0)) {
+          dest[j] = dest[j - 1];
+          j--;
+        }
+        dest[j] = val;
+      }
+      return;
+    }
+
+    int destLow = low;
+    int destHigh = high;
+    low += off;
+    high += off;
+    int mid = (low + high) >>> 1;
+    mergeSort(dest, src, low, mid, -off, cmp);
+    mergeSort(dest, src, mid, high, -off, cmp);
+
+    if (cmp.compare(src[mid - 1], src[mid]) <= 0) {
+      System.arraycopy(src, low, dest, destLow, length);
+      return;
+    }
+    int p = low;
+    int q = mid;
+    for (int i = destLow; i < destHigh; i++) {
+      if ((q >= high) || ((p < mid) && (cmp.compare(src[p], src[q]) <= 0))) {
+        dest[i] = src[p++];
+      } else {
+        dest[i] = src[q++];
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Stable merge of src[lo1, hi1) and src[lo2, hi2) into dest from at
+  */
+
+  private static void merge(int[] src, int lo1, int hi1, int lo2, int hi2,
+                            int[] dest, int at, IntComparator cmp) {
+    int p = lo1;
+    int q = lo2;
+    while ((p < hi1) && (q < hi2)) {
+      if (cmp.compare(src[p], src[q]) <= 0) {
+        dest[at++] = src[p++];
+      } else {
+        dest[at++] = src[q++];
+      }
+    }
+    System.arraycopy(src, p, dest, at, hi1 - p);
+    at += hi1 - p;
+    System.arraycopy(src, q, dest, at, hi2 - q);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** mergeSort() with the two halves sorted, and the merge done, as tasks
+  */
+
+  private static class SortTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] src_;
+    private int[] dest_;
+    private int low_;
+    private int high_;
+    private int off_;
+    private IntComparator cmp_;
+
+    SortTask(int[] src, int[] dest, int low, int high, int off, IntComparator cmp) {
+      src_ = src;
+      dest_ = dest;
+      low_ = low;
+      high_ = high;
+      off_ = off;
+      cmp_ = cmp;
+    }
+
+    protected void compute() {
+      int length = high_ - low_;
+      if (length < SORT_LEAF_) {
+        mergeSort(src_, dest_, low_, high_, off_, cmp_);
+        return;
+      }
+      int low = low_ + off_;
+      int high = high_ + off_;
+      int mid = (low + high) >>> 1;
+      invokeAll(new SortTask(dest_, src_, low, mid, -off_, cmp_),
+                new SortTask(dest_, src_, mid, high, -off_, cmp_));
+      if (cmp_.compare(src_[mid - 1], src_[mid]) <= 0) {
+        System.arraycopy(src_, low, dest_, low_, length);
+        return;
+      }
+      new MergeTask(src_, low, mid, mid, high, dest_, low_, cmp_).compute();
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Merges two sorted runs by splitting the longer at its middle, finding
+  ** where that element goes in the other, and merging the two sides at once.
+  ** Ties still go to the first run, so the merge stays stable.
+  */
+
+  private static class MergeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] src_;
+    private int lo1_;
+    private int hi1_;
+    private int lo2_;
+    private int hi2_;
+    private int[] dest_;
+    private int at_;
+    private IntComparator cmp_;
+
+    MergeTask(int[] src, int lo1, int hi1, int lo2, int hi2, int[] dest, int at, IntComparator cmp) {
+      src_ = src;
+      lo1_ = lo1;
+      hi1_ = hi1;
+      lo2_ = lo2;
+      hi2_ = hi2;
+      dest_ = dest;
+      at_ = at;
+      cmp_ = cmp;
+    }
+
+    protected void compute() {
+      int len1 = hi1_ - lo1_;
+      int len2 = hi2_ - lo2_;
+      if (len1 + len2 <= MERGE_LEAF_) {
+        merge(src_, lo1_, hi1_, lo2_, hi2_, dest_, at_, cmp_);
+        return;
+      }
+      int split1;
+      int split2;
+      if (len1 >= len2) {
+        split1 = (lo1_ + hi1_) >>> 1;
+        int key = src_[split1];
+        int lo = lo2_;
+        int hi = hi2_;
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (cmp_.compare(src_[mid], key) < 0) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+        split2 = lo;
+      } else {
+        split2 = (lo2_ + hi2_) >>> 1;
+        int key = src_[split2];
+        int lo = lo1_;
+        int hi = hi1_;
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (cmp_.compare(src_[mid], key) <= 0) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+        split1 = lo;
+      }
+      int at2 = at_ + (split1 - lo1_) + (split2 - lo2_);
+      invokeAll(new MergeTask(src_, lo1_, split1, lo2_, split2, dest_, at_, cmp_),
+                new MergeTask(src_, split1, hi1_, split2, hi2_, dest_, at2, cmp_));
+      return;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/****************************************************************************
+**
+** An on-disk cache of NOA files, keyed by a SHA-256 of the graph content
+** (names, classes and links, in name order, so the order of the lines in
+** the SIF does not matter) and the layout options. Entries go in with a
+** write to a temp file in the cache directory and an atomic rename, so jobs
+** sharing the directory never see a partial entry. A hit marks the entry
+** as used by touching its modified time, and when the entries go over the
+** size bound the least recently used ones are deleted.
+*/
+
+public class LayoutCache {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public final static long DEFAULT_MAX_BYTES = 1L << 30;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // Bump this if the layout ever changes, so old entries stop matching:
+  //
+
+  private final static String FORMAT_ = "MultiModeDagLayout-1";
+  private final static String SUFFIX_ = ".noa";
+  private final static String TEMP_PREFIX_ = ".tmp-";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private File dir_;
+  private long maxBytes_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The directory is created if needed.
+  */
+
+  public LayoutCache(File dir, long maxBytes) throws IOException {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException();
+    }
+    Files.createDirectories(dir.toPath());
+    dir_ = dir;
+    maxBytes_ = maxBytes;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Copy the cached NOA for the key to the output file. Answers false on a
+  ** miss (including an entry evicted out from under us).
+  */
+
+  public boolean fetch(String key, String outfile) throws IOException {
+    File entry = new File(dir_, key + SUFFIX_);
+    try {
+      Files.copy(entry.toPath(), new File(outfile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (NoSuchFileException nsfex) {
+      return (false);
+    }
+    entry.setLastModified(System.currentTimeMillis());
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Put a copy of the NOA file in the cache under the key, then evict down
+  ** to the size bound
+  */
+
+  public void store(String key, String noaFile) throws IOException {
+    Path temp = Files.createTempFile(dir_.toPath(), TEMP_PREFIX_, SUFFIX_);
+    try {
+      Files.copy(new File(noaFile).toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+      Path entry = new File(dir_, key + SUFFIX_).toPath();
+      Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    evict();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Delete the least recently used entries until the rest fit the bound.
+  ** Other jobs may be evicting at the same time, so entries that are already
+  ** gone are fine.
+  */
+
+  public void evict() {
+    File[] entries = dir_.listFiles();
+    if (entries == null) {
+      return;
+    }
+    int numEntries = 0;
+    long total = 0L;
+    final long[] stamps = new long[entries.length];
+    Integer[] order = new Integer[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      String name = entries[i].getName();
+      if (!name.endsWith(SUFFIX_) || name.startsWith(TEMP_PREFIX_)) {
+        continue;
+      }
+      stamps[i] = entries[i].lastModified();
+      total += entries[i].length();
+      order[numEntries++] = Integer.valueOf(i);
+    }
+    if (total <= maxBytes_) {
+      return;
+    }
+    Arrays.sort(order, 0, numEntries, new Comparator<Integer>() {
+      public int compare(Integer e1, Integer e2) {
+        return (Long.compare(stamps[e1.intValue()], stamps[e2.intValue()]));
+      }
+    });
+    for (int i = 0; (i < numEntries) && (total > maxBytes_); i++) {
+      File entry = entries[order[i].intValue()];
+      long size = entry.length();
+      if (entry.delete()) {
+        total -= size;
+      }
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Hash the graph content. Nodes go in name order, each with its class and
+  ** the name ranks of its parents, so two files with the same links in a
+  ** different order hash the same.
+  */
+
+  public static String graphDigest(DagGraph graph) {
+    MessageDigest md = sha256();
+    md.update(FORMAT_.getBytes(StandardCharsets.UTF_8));
+    int numNodes = graph.getNodeCount();
+    byte[] buf = new byte[4];
+    int[] ranks = new int[16];
+    updateInt(md, buf, numNodes);
+    for (int i = 0; i < numNodes; i++) {
+      int node = graph.getNodeForNameRank(i);
+      byte[] name = graph.getNamePool().getNameBytes(node);
+      updateInt(md, buf, name.length);
+      md.update(name);
+      updateInt(md, buf, graph.getNodeClass(node));
+      int numPar = graph.getParentCount(node);
+      if (ranks.length < numPar) {
+        ranks = new int[numPar * 2];
+      }
+      int start = graph.parentsStart(node);
+      for (int j = 0; j < numPar; j++) {
+        ranks[j] = graph.getNameRank(graph.getParent(start + j));
+      }
+      Arrays.sort(ranks, 0, numPar);
+      updateInt(md, buf, numPar);
+      for (int j = 0; j < numPar; j++) {
+        updateInt(md, buf, ranks[j]);
+      }
+    }
+    return (toHex(md.digest()));
+  }
+
+  /***************************************************************************
+  **
+  ** The cache key for a graph digest and a description of the layout options
+  */
+
+  public static String key(String graphDigest, String options) {
+    MessageDigest md = sha256();
+    md.update(graphDigest.getBytes(StandardCharsets.UTF_8));
+    md.update((byte)0);
+    md.update(options.getBytes(StandardCharsets.UTF_8));
+    return (toHex(md.digest()));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get a SHA-256 digest; every JDK has one
+  */
+
+  private static MessageDigest sha256() {
+    try {
+      return (MessageDigest.getInstance("SHA-256"));
+    } catch (NoSuchAlgorithmException nsaex) {
+      throw new IllegalStateException(nsaex);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Feed an int to the digest, big-endian
+  */
+
+  private static void updateInt(MessageDigest md, byte[] buf, int val) {
+    buf[0] = (byte)(val >>> 24);
+    buf[1] = (byte)(val >>> 16);
+    buf[2] = (byte)(val >>> 8);
+    buf[3] = (byte)val;
+    md.update(buf, 0, 4);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Hex string for the digest
+  */
+
+  private static String toHex(byte[] bytes) {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < bytes.length; i++) {
+      buf.append(Character.forDigit((bytes[i] >>> 4) & 0xf, 16));
+      buf.append(Character.forDigit(bytes[i] & 0xf, 16));
+    }
+    return (buf.toString());
+  }
+}
@@ -0,0 +1,408 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/****************************************************************************
+**
+** Instrumentation for layout runs. Each phase (parse, building the graph,
+** extracting the roots, each round of finding candidates, writing the NOA)
+** gets its wall time and the bytes allocated by its thread, and named
+** counters (comparisons, candidates scanned, batch sizes) are totaled. Both
+** go out as JFR events, so a flight recording shows them on the timeline,
+** and can be written to a JSON file at the end of the run. Phases and
+** counters can be recorded from several threads at once.
+*/
+
+public class LayoutMetrics {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private long startNanos_;
+  private ThreadMXBean threadBean_;
+  private boolean allocOK_;
+  private ArrayList<PhaseRecord> phases_;
+  private TreeMap<String, Long> counters_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Times are taken from here.
+  */
+
+  public LayoutMetrics() {
+    startNanos_ = System.nanoTime();
+    threadBean_ = ManagementFactory.getThreadMXBean();
+    allocOK_ = false;
+    if (threadBean_ instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean hsBean = (com.sun.management.ThreadMXBean)threadBean_;
+      allocOK_ = hsBean.isThreadAllocatedMemorySupported() && hsBean.isThreadAllocatedMemoryEnabled();
+    }
+    phases_ = new ArrayList<PhaseRecord>();
+    counters_ = new TreeMap<String, Long>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Start timing a phase
+  */
+
+  public Phase begin(String name) {
+    return (new Phase(name, null, -1));
+  }
+
+  /***************************************************************************
+  **
+  ** Start timing a phase of a layout variant, or one round of a phase
+  ** (round -1 for none)
+  */
+
+  public Phase begin(String name, LayoutVariant variant, int round) {
+    return (new Phase(name, (variant == null) ? null : variant.toString(), round));
+  }
+
+  /***************************************************************************
+  **
+  ** Add to a counter
+  */
+
+  public synchronized void count(String counter, long amount) {
+    Long current = counters_.get(counter);
+    counters_.put(counter, Long.valueOf((current == null) ? amount : current.longValue() + amount));
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Raise a counter to the value, if it is below it
+  */
+
+  public synchronized void max(String counter, long value) {
+    Long current = counters_.get(counter);
+    if ((current == null) || (current.longValue() < value)) {
+      counters_.put(counter, Long.valueOf(value));
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get a counter; zero if never counted
+  */
+
+  public synchronized long getCount(String counter) {
+    Long current = counters_.get(counter);
+    return ((current == null) ? 0L : current.longValue());
+  }
+
+  /***************************************************************************
+  **
+  ** Send the counter totals out as JFR events
+  */
+
+  public synchronized void commitCounters() {
+    Iterator<Map.Entry<String, Long>> cit = counters_.entrySet().iterator();
+    while (cit.hasNext()) {
+      Map.Entry<String, Long> entry = cit.next();
+      CounterEvent event = new CounterEvent();
+      if (event.shouldCommit()) {
+        event.counter = entry.getKey();
+        event.value = entry.getValue().longValue();
+        event.commit();
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write the phases and counters as JSON
+  */
+
+  public synchronized void writeJson(String outfile) throws IOException {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outfile), "UTF-8")));
+    out.println("{");
+    out.print("  \"totalMillis\": ");
+    out.print(millis(System.nanoTime() - startNanos_));
+    out.println(",");
+    out.println("  \"phases\": [");
+    int numPhases = phases_.size();
+    for (int i = 0; i < numPhases; i++) {
+      PhaseRecord rec = phases_.get(i);
+      out.print("    {\"phase\": ");
+      out.print(quote(rec.name_));
+      if (rec.variant_ != null) {
+        out.print(", \"variant\": ");
+        out.print(quote(rec.variant_));
+      }
+      if (rec.round_ != -1) {
+        out.print(", \"round\": ");
+        out.print(rec.round_);
+      }
+      out.print(", \"startMillis\": ");
+      out.print(millis(rec.startNanos_ - startNanos_));
+      out.print(", \"millis\": ");
+      out.print(millis(rec.nanos_));
+      if (rec.allocated_ != -1L) {
+        out.print(", \"allocatedBytes\": ");
+        out.print(rec.allocated_);
+      }
+      out.print(", \"nodes\": ");
+      out.print(rec.nodes_);
+      out.println((i < numPhases - 1) ? "}," : "}");
+    }
+    out.println("  ],");
+    out.println("  \"counters\": {");
+    Iterator<Map.Entry<String, Long>> cit = counters_.entrySet().iterator();
+    while (cit.hasNext()) {
+      Map.Entry<String, Long> entry = cit.next();
+      out.print("    ");
+      out.print(quote(entry.getKey()));
+      out.print(": ");
+      out.print(entry.getValue());
+      out.println((cit.hasNext()) ? "," : "");
+    }
+    out.println("  }");
+    out.println("}");
+    out.close();
+    if (out.checkError()) {
+      throw new IOException("Failed writing " + outfile);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Bytes allocated so far by the current thread; -1 if the JVM cannot say
+  */
+
+  private long allocatedBytes() {
+    if (!allocOK_) {
+      return (-1L);
+    }
+    long threadID = Thread.currentThread().getId();
+    return (((com.sun.management.ThreadMXBean)threadBean_).getThreadAllocatedBytes(threadID));
+  }
+
+  /***************************************************************************
+  **
+  ** Keep a finished phase
+  */
+
+  private synchronized void record(PhaseRecord rec) {
+    phases_.add(rec);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Nanoseconds as fractional milliseconds
+  */
+
+  private static String millis(long nanos) {
+    return (String.format(Locale.ROOT, "%.3f", nanos / 1.0e6));
+  }
+
+  /***************************************************************************
+  **
+  ** JSON string literal
+  */
+
+  private static String quote(String str) {
+    StringBuffer buf = new StringBuffer();
+    buf.append('"');
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      if ((ch == '"') || (ch == '\\')) {
+        buf.append('\\').append(ch);
+      } else if (ch < 0x20) {
+        buf.append(String.format("\\u%04x", Integer.valueOf(ch)));
+      } else {
+        buf.append(ch);
+      }
+    }
+    buf.append('"');
+    return (buf.toString());
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A phase being timed. End it on the thread that began it, so the
+  ** allocation count is for the right thread.
+  */
+
+  public class Phase {
+
+    private PhaseRecord rec_;
+    private long startAlloc_;
+    private PhaseEvent event_;
+
+    Phase(String name, String variant, int round) {
+      rec_ = new PhaseRecord(name, variant, round);
+      event_ = new PhaseEvent();
+      event_.begin();
+      startAlloc_ = allocatedBytes();
+      rec_.startNanos_ = System.nanoTime();
+    }
+
+    /***************************************************************************
+    **
+    ** Finish the phase, which handled the given number of nodes
+    */
+
+    public void end(int nodes) {
+      rec_.nanos_ = System.nanoTime() - rec_.startNanos_;
+      long endAlloc = allocatedBytes();
+      rec_.allocated_ = ((startAlloc_ == -1L) || (endAlloc == -1L)) ? -1L : endAlloc - startAlloc_;
+      rec_.nodes_ = nodes;
+      record(rec_);
+      event_.end();
+      if (event_.shouldCommit()) {
+        event_.phase = rec_.name_;
+        event_.variant = rec_.variant_;
+        event_.round = rec_.round_;
+        event_.nodes = nodes;
+        event_.allocated = rec_.allocated_;
+        event_.commit();
+      }
+      return;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** What gets kept for a phase
+  */
+
+  private static class PhaseRecord {
+
+    String name_;
+    String variant_;
+    int round_;
+    long startNanos_;
+    long nanos_;
+    long allocated_;
+    int nodes_;
+
+    PhaseRecord(String name, String variant, int round) {
+      name_ = name;
+      variant_ = variant;
+      round_ = round;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** JFR event for a phase
+  */
+
+  @Name("org.systemsbiology.biofabric.LayoutPhase")
+  @Label("Layout Phase")
+  @Category({"BioFabric", "Layout"})
+  @Description("One phase of a DAG layout run")
+  static class PhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Variant")
+    String variant;
+
+    @Label("Round")
+    int round;
+
+    @Label("Nodes")
+    int nodes;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+  }
+
+  /***************************************************************************
+  **
+  ** JFR event for a counter total
+  */
+
+  @Name("org.systemsbiology.biofabric.LayoutCounter")
+  @Label("Layout Counter")
+  @Category({"BioFabric", "Layout"})
+  @Description("A counter total for a DAG layout run")
+  static class CounterEvent extends Event {
+
+    @Label("Counter")
+    String counter;
+
+    @Label("Value")
+    long value;
+  }
+}
@@ -0,0 +1,672 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/****************************************************************************
+**
+** Local HTTP layout service, so interactive use gets a warm JVM instead of
+** paying startup and JIT for each layout. It listens on the loopback
+** address only, and turns away requests whose Host is not a loopback name,
+** so a web page cannot reach it by DNS rebinding:
+**
+**   POST /layout             the body is a SIF file (or gzipped SIF)
+**   GET or POST /layout?path=file
+**                            lays out a SIF or snapshot file under the path
+**                            root (relative paths are against it); without
+**                            a root, path= is refused
+**   GET /health              status and counters, as JSON
+**
+** /layout also takes variant=classOrder[:revnames] and condenseCycles=true,
+** and streams back the NOA. At most maxJobs + maxWaiting layout requests
+** are taken on at once, counting uploads still being spooled; past that, a
+** request gets a 503 before any of its body is read. Layouts are admitted
+** like BatchLayout jobs: each reserves a memory estimate from its input size
+** against a byte budget, and at most maxJobs run at once. A request that
+** cannot get in within the wait time gets a 503, and one that would need
+** more than the whole budget gets a 413 right away, so a big job cannot take
+** the heap down with everything else. If a layout still runs out of memory,
+** the server stops rather than carry on in a bad state.
+**
+** On Java 24 and later each request runs on its own virtual thread. Before
+** that, requests share a fixed pool with a thread for every request that
+** can be taken on, plus a few for quick replies.
+*/
+
+public class LayoutService {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public final static int DEFAULT_PORT = 8765;
+  public final static long DEFAULT_MAX_UPLOAD = 256L << 20;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int IO_BUF_ = 1 << 16;
+  private final static int QUICK_THREADS_ = 4;
+  private final static int VIRTUAL_THREADS_FROM_ = 24;
+  private final static int RETRY_AFTER_SECS_ = 5;
+  private final static String TEXT_TYPE_ = "text/plain; charset=UTF-8";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private int port_;
+  private int maxJobs_;
+  private long budget_;
+  private int maxWaiting_;
+  private long waitMillis_;
+  private long maxUpload_;
+  private File tempDir_;
+  private File pathRoot_;
+  private HttpServer server_;
+  private ExecutorService executor_;
+  private long startNanos_;
+
+  private Semaphore taken_;
+  private int running_;
+  private int waiting_;
+  private long reserved_;
+
+  private AtomicLong completed_;
+  private AtomicLong failed_;
+  private AtomicLong rejected_;
+  private AtomicLong layoutNanos_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Port 0 picks a free port. Uploads are spooled to tempDir
+  ** (null for the default), and may be at most maxUpload bytes. Files named
+  ** by path= must be under pathRoot; if that is null, path= is refused.
+  */
+
+  public LayoutService(int port, int maxJobs, long memoryBudget, int maxWaiting,
+                       long waitMillis, long maxUpload, File tempDir, File pathRoot) throws IOException {
+    if ((port < 0) || (maxJobs < 1) || (memoryBudget < 1) || (maxWaiting < 0) ||
+        (waitMillis < 0) || (maxUpload < 1)) {
+      throw new IllegalArgumentException();
+    }
+    port_ = port;
+    maxJobs_ = maxJobs;
+    budget_ = memoryBudget;
+    maxWaiting_ = maxWaiting;
+    waitMillis_ = waitMillis;
+    maxUpload_ = maxUpload;
+    tempDir_ = tempDir;
+    pathRoot_ = (pathRoot == null) ? null : pathRoot.getCanonicalFile();
+    if ((pathRoot_ != null) && !pathRoot_.isDirectory()) {
+      throw new IOException("No directory " + pathRoot);
+    }
+    taken_ = new Semaphore(maxJobs + maxWaiting);
+    running_ = 0;
+    waiting_ = 0;
+    reserved_ = 0L;
+    completed_ = new AtomicLong(0L);
+    failed_ = new AtomicLong(0L);
+    rejected_ = new AtomicLong(0L);
+    layoutNanos_ = new AtomicLong(0L);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Start listening; returns the port
+  */
+
+  public int start() throws IOException {
+    server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port_), 0);
+    server_.createContext("/layout", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleLayout(exchange);
+      }
+    });
+    server_.createContext("/health", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleHealth(exchange);
+      }
+    });
+
+    //
+    // A virtual thread per request where there are any. Else a fixed pool:
+    // at most maxJobs + maxWaiting requests are taken on, so with a few more
+    // threads for replies that need no admission, none wait on a busy pool.
+    //
+
+    executor_ = virtualThreadExecutor();
+    if (executor_ == null) {
+      final AtomicInteger threadCount = new AtomicInteger(0);
+      executor_ = Executors.newFixedThreadPool(maxJobs_ + maxWaiting_ + QUICK_THREADS_, new ThreadFactory() {
+        public Thread newThread(Runnable runner) {
+          Thread thread = new Thread(runner, "layout-request-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return (thread);
+        }
+      });
+    }
+    server_.setExecutor(executor_);
+    startNanos_ = System.nanoTime();
+    server_.start();
+    return (server_.getAddress().getPort());
+  }
+
+  /***************************************************************************
+  **
+  ** Stop, giving requests under way up to the given seconds to finish
+  */
+
+  public void stop(int delaySecs) {
+    server_.stop(delaySecs);
+    executor_.shutdown();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Run program
+  */
+
+  public static void main(String[] argv) {
+    int port = DEFAULT_PORT;
+    int maxJobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    int maxWaiting = 16;
+    long waitMillis = 30000L;
+    long maxUpload = DEFAULT_MAX_UPLOAD;
+    File tempDir = null;
+    File pathRoot = null;
+    int argc = 0;
+    try {
+      while ((argc < argv.length) && argv[argc].startsWith("-")) {
+        if (argv[argc].equals("-port") && (argc + 1 < argv.length)) {
+          port = Integer.parseInt(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-maxJobs") && (argc + 1 < argv.length)) {
+          maxJobs = Integer.parseInt(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-memoryMB") && (argc + 1 < argv.length)) {
+          memoryBudget = Long.parseLong(argv[argc + 1]) << 20;
+          argc += 2;
+        } else if (argv[argc].equals("-maxWaiting") && (argc + 1 < argv.length)) {
+          maxWaiting = Integer.parseInt(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-waitSecs") && (argc + 1 < argv.length)) {
+          waitMillis = Long.parseLong(argv[argc + 1]) * 1000L;
+          argc += 2;
+        } else if (argv[argc].equals("-maxUploadMB") && (argc + 1 < argv.length)) {
+          maxUpload = Long.parseLong(argv[argc + 1]) << 20;
+          argc += 2;
+        } else if (argv[argc].equals("-tempDir") && (argc + 1 < argv.length)) {
+          tempDir = new File(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-pathRoot") && (argc + 1 < argv.length)) {
+          pathRoot = new File(argv[argc + 1]);
+          argc += 2;
+        } else {
+          break;
+        }
+      }
+    } catch (NumberFormatException ex) {
+      argc = -1;
+    }
+
+    if ((argc != argv.length) || (port < 0) || (port > 65535) || (maxJobs < 1) || (memoryBudget < 1) ||
+        (maxWaiting < 0) || (waitMillis < 0) || (maxUpload < 1)) {
+      System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.LayoutService [-port N] [-maxJobs N] [-memoryMB N] [-maxWaiting N] [-waitSecs N] [-maxUploadMB N] [-tempDir dir] [-pathRoot dir]");
+      return;
+    }
+
+    try {
+      LayoutService service = new LayoutService(port, maxJobs, memoryBudget, maxWaiting, waitMillis, maxUpload,
+                                                tempDir, pathRoot);
+      int boundPort = service.start();
+      System.out.println("Layout service listening on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + boundPort + "/");
+    } catch (Exception ex) {
+      System.err.println("Caught exception:" + ex);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Lay out a posted SIF body or a local file, and stream back the NOA
+  */
+
+  private void handleLayout(HttpExchange exchange) throws IOException {
+    File spool = null;
+    boolean taken = false;
+    try {
+      if (!loopbackHost(exchange)) {
+        sendText(exchange, 403, "Host must be a loopback name");
+        return;
+      }
+      String method = exchange.getRequestMethod();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      String path = query.get("path");
+      if (!method.equals("POST") && !(method.equals("GET") && (path != null))) {
+        sendText(exchange, 405, "Use POST with a SIF body, or a path= query");
+        return;
+      }
+      LayoutVariant variant;
+      try {
+        variant = (query.containsKey("variant")) ? LayoutVariant.parse(query.get("variant")) : LayoutVariant.DEFAULT;
+      } catch (IllegalArgumentException iaex) {
+        sendText(exchange, 400, "Bad variant: " + query.get("variant"));
+        return;
+      }
+      boolean condenseCycles = Boolean.parseBoolean(query.get("condenseCycles"));
+
+      //
+      // Take the request on before reading any of the body. A body then goes
+      // to disk first, so it costs no heap until it is admitted:
+      //
+
+      taken = taken_.tryAcquire();
+      if (!taken) {
+        rejected_.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECS_));
+        sendText(exchange, 503, "Too busy; try again later");
+        return;
+      }
+
+      File sifIn;
+      if (path != null) {
+        sifIn = underRoot(path);
+        if (sifIn == null) {
+          sendText(exchange, 403, "Not under the path root: " + path);
+          return;
+        }
+        if (!sifIn.isFile()) {
+          sendText(exchange, 404, "No file " + path);
+          return;
+        }
+      } else {
+        spool = File.createTempFile("layoutService", ".sif", tempDir_);
+        sifIn = spool;
+        if (!spoolBody(exchange.getRequestBody(), spool)) {
+          rejected_.incrementAndGet();
+          sendText(exchange, 413, "Body is over " + maxUpload_ + " bytes");
+          return;
+        }
+      }
+
+      long need = BatchLayout.estimate(sifIn);
+      if (need > budget_) {
+        rejected_.incrementAndGet();
+        sendText(exchange, 413, "Layout needs about " + need + " bytes; the budget is " + budget_);
+        return;
+      }
+      if (!admit(need)) {
+        rejected_.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECS_));
+        sendText(exchange, 503, "Too busy; try again later");
+        return;
+      }
+      try {
+        runLayout(exchange, sifIn, variant, condenseCycles);
+      } finally {
+        release(need);
+      }
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      sendText(exchange, 503, "Interrupted");
+    } finally {
+      if (spool != null) {
+        spool.delete();
+      }
+      if (taken) {
+        taken_.release();
+      }
+      exchange.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Run an admitted layout. Failures are reported before any of the NOA
+  ** goes out; the budget is held until it is all sent.
+  */
+
+  private void runLayout(HttpExchange exchange, File sifIn, LayoutVariant variant,
+                         boolean condenseCycles) throws IOException {
+    DagGraph graph;
+    int[] order;
+    long start = System.nanoTime();
+    try {
+      MultiModeDagLayout engine = new MultiModeDagLayout();
+      graph = engine.readGraph(sifIn, 1);
+      order = engine.layout(graph, variant, condenseCycles);
+    } catch (IOException ioex) {
+      fail(exchange, 400, sifIn, ioex.getMessage());
+      return;
+    } catch (IllegalStateException isex) {
+      fail(exchange, 422, sifIn, isex.getMessage());
+      return;
+    } catch (RuntimeException rex) {
+      fail(exchange, 500, sifIn, rex.toString());
+      return;
+    } catch (OutOfMemoryError oom) {
+      System.err.println("Out of memory on " + sifIn + "; stopping");
+      server_.stop(0);
+      executor_.shutdown();
+      throw oom;
+    }
+    layoutNanos_.addAndGet(System.nanoTime() - start);
+
+    exchange.getResponseHeaders().set("Content-Type", TEXT_TYPE_);
+    exchange.getResponseHeaders().set("X-Layout-Nodes", Integer.toString(graph.getNodeCount()));
+    exchange.sendResponseHeaders(200, 0L);
+    OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), IO_BUF_);
+    MultiModeDagLayout.writeNOA(out, graph, order);
+    out.close();
+    completed_.incrementAndGet();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Report a failed layout
+  */
+
+  private void fail(HttpExchange exchange, int code, File sifIn, String message) throws IOException {
+    failed_.incrementAndGet();
+    System.err.println("Failed on " + sifIn + ": " + message);
+    sendText(exchange, code, message);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Status and counters, as JSON
+  */
+
+  private void handleHealth(HttpExchange exchange) throws IOException {
+    try {
+      if (!loopbackHost(exchange)) {
+        sendText(exchange, 403, "Host must be a loopback name");
+        return;
+      }
+      if (!exchange.getRequestMethod().equals("GET")) {
+        sendText(exchange, 405, "Use GET");
+        return;
+      }
+      int running;
+      int waiting;
+      long reserved;
+      synchronized (this) {
+        running = running_;
+        waiting = waiting_;
+        reserved = reserved_;
+      }
+      Runtime rt = Runtime.getRuntime();
+      StringBuilder buf = new StringBuilder();
+      buf.append("{\n");
+      buf.append("  \"status\": \"ok\",\n");
+      buf.append("  \"uptimeMillis\": ").append((System.nanoTime() - startNanos_) / 1000000L).append(",\n");
+      buf.append("  \"running\": ").append(running).append(",\n");
+      buf.append("  \"waiting\": ").append(waiting).append(",\n");
+      buf.append("  \"maxJobs\": ").append(maxJobs_).append(",\n");
+      buf.append("  \"reservedBytes\": ").append(reserved).append(",\n");
+      buf.append("  \"budgetBytes\": ").append(budget_).append(",\n");
+      buf.append("  \"completed\": ").append(completed_.get()).append(",\n");
+      buf.append("  \"failed\": ").append(failed_.get()).append(",\n");
+      buf.append("  \"rejected\": ").append(rejected_.get()).append(",\n");
+      buf.append("  \"layoutMillis\": ").append(layoutNanos_.get() / 1000000L).append(",\n");
+      buf.append("  \"heapUsedBytes\": ").append(rt.totalMemory() - rt.freeMemory()).append(",\n");
+      buf.append("  \"heapMaxBytes\": ").append(rt.maxMemory()).append("\n");
+      buf.append("}\n");
+      byte[] body = buf.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } finally {
+      exchange.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The file a path= names, if it is under the path root once links and
+  ** ".." are resolved; else null
+  */
+
+  private File underRoot(String path) throws IOException {
+    if (pathRoot_ == null) {
+      return (null);
+    }
+    File named = new File(path);
+    File file = ((named.isAbsolute()) ? named : new File(pathRoot_, path)).getCanonicalFile();
+    return ((file.toPath().startsWith(pathRoot_.toPath())) ? file : null);
+  }
+
+  /***************************************************************************
+  **
+  ** Wait until a job slot is free and the bytes fit in the budget, then take
+  ** them. Returns false if too many are waiting already, or the wait runs out.
+  */
+
+  private synchronized boolean admit(long bytes) throws InterruptedException {
+    if ((running_ >= maxJobs_) || (reserved_ + bytes > budget_)) {
+      if (waiting_ >= maxWaiting_) {
+        return (false);
+      }
+      long deadline = System.nanoTime() + (waitMillis_ * 1000000L);
+      waiting_++;
+      try {
+        while ((running_ >= maxJobs_) || (reserved_ + bytes > budget_)) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0L) {
+            return (false);
+          }
+          wait((left + 999999L) / 1000000L);
+        }
+      } finally {
+        waiting_--;
+      }
+    }
+    running_++;
+    reserved_ += bytes;
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Give the slot and the bytes back
+  */
+
+  private synchronized void release(long bytes) {
+    running_--;
+    reserved_ -= bytes;
+    notifyAll();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Copy the request body to the file. Returns false if it is too big.
+  */
+
+  private boolean spoolBody(InputStream in, File spool) throws IOException {
+    OutputStream out = new FileOutputStream(spool);
+    try {
+      byte[] buf = new byte[IO_BUF_];
+      long total = 0L;
+      int got;
+      while ((got = in.read(buf)) != -1) {
+        total += got;
+        if (total > maxUpload_) {
+          return (false);
+        }
+        out.write(buf, 0, got);
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+    return (true);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A virtual thread per task executor, or null before Java 24. This is
+  ** looked up at run time, since the build targets Java 17. Java 21 has
+  ** virtual threads, but one blocked inside a monitor holds on to its carrier
+  ** thread there, and the HTTP server reads request bodies inside one, so a
+  ** few slow uploads would stall every other request.
+  */
+
+  private static ExecutorService virtualThreadExecutor() {
+    if (Runtime.version().feature() < VIRTUAL_THREADS_FROM_) {
+      return (null);
+    }
+    Method factory;
+    try {
+      factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException nsmex) {
+      return (null);
+    }
+    try {
+      return ((ExecutorService)factory.invoke(null));
+    } catch (ReflectiveOperationException roex) {
+      throw new IllegalStateException("Cannot make virtual threads", roex);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Send a short plain text reply
+  */
+
+  private static void sendText(HttpExchange exchange, int code, String message) throws IOException {
+    byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", TEXT_TYPE_);
+    exchange.sendResponseHeaders(code, body.length);
+    exchange.getResponseBody().write(body);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the Host header names this machine by a loopback name or
+  ** address, with or without a port
+  */
+
+  private static boolean loopbackHost(HttpExchange exchange) {
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null) {
+      return (false);
+    }
+    host = host.trim().toLowerCase(Locale.ROOT);
+    if (host.startsWith("[")) {
+      int close = host.indexOf(']');
+      if ((close == -1) || ((close + 1 < host.length()) && (host.charAt(close + 1) != ':'))) {
+        return (false);
+      }
+      return (host.substring(1, close).equals("::1"));
+    }
+    int colon = host.indexOf(':');
+    if (colon != -1) {
+      host = host.substring(0, colon);
+    }
+    return (host.equals("localhost") || host.equals("127.0.0.1"));
+  }
+
+  /***************************************************************************
+  **
+  ** Split a raw query string into decoded names and values
+  */
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    HashMap<String, String> retval = new HashMap<String, String>();
+    if (rawQuery == null) {
+      return (retval);
+    }
+    String[] pairs = rawQuery.split("&");
+    for (int i = 0; i < pairs.length; i++) {
+      if (pairs[i].equals("")) {
+        continue;
+      }
+      int eq = pairs[i].indexOf('=');
+      String name = (eq == -1) ? pairs[i] : pairs[i].substring(0, eq);
+      String value = (eq == -1) ? "" : pairs[i].substring(eq + 1);
+      retval.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return (retval);
+  }
+}
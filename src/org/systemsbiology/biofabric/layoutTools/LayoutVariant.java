@@ -0,0 +1,175 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** The choices that make one layout of a graph differ from another: the
+** order the node classes are visited in (classes not listed follow, in
+** number order), and which way name ties are broken. The default is the
+** original layout: classes 0..maxClass, with roots in ascending name order
+** and the final candidate tie-break on descending name. Reversing the names
+** flips both.
+*/
+
+public class LayoutVariant {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public final static LayoutVariant DEFAULT = new LayoutVariant(null, false);
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static String NATURAL_ = "natural";
+  private final static String REVERSE_NAMES_ = "revnames";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final int[] classOrder_;
+  private final boolean reverseNames_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. A null class order means number order.
+  */
+
+  public LayoutVariant(int[] classOrder, boolean reverseNames) {
+    if (classOrder != null) {
+      int maxListed = -1;
+      for (int i = 0; i < classOrder.length; i++) {
+        if (classOrder[i] < 0) {
+          throw new IllegalArgumentException("Bad class " + classOrder[i]);
+        }
+        maxListed = Math.max(maxListed, classOrder[i]);
+      }
+      boolean[] seen = new boolean[maxListed + 1];
+      for (int i = 0; i < classOrder.length; i++) {
+        if (seen[classOrder[i]]) {
+          throw new IllegalArgumentException("Class " + classOrder[i] + " listed twice");
+        }
+        seen[classOrder[i]] = true;
+      }
+    }
+    classOrder_ = (classOrder == null) ? null : classOrder.clone();
+    reverseNames_ = reverseNames;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the order to visit the classes 0..maxClass in
+  */
+
+  public int[] getClassOrder(int maxClass) {
+    int[] retval = new int[maxClass + 1];
+    boolean[] listed = new boolean[maxClass + 1];
+    int count = 0;
+    if (classOrder_ != null) {
+      for (int i = 0; i < classOrder_.length; i++) {
+        if (classOrder_[i] <= maxClass) {
+          retval[count++] = classOrder_[i];
+          listed[classOrder_[i]] = true;
+        }
+      }
+    }
+    for (int i = 0; i <= maxClass; i++) {
+      if (!listed[i]) {
+        retval[count++] = i;
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if name ties are broken the other way
+  */
+
+  public boolean isReverseNames() {
+    return (reverseNames_);
+  }
+
+  @Override
+  public String toString() {
+    String order = (classOrder_ == null) ? NATURAL_ : Arrays.toString(classOrder_);
+    return ((reverseNames_) ? order + ":" + REVERSE_NAMES_ : order);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Parse a variant given as "classOrder[:revnames]", where the class order
+  ** is a comma-separated list of class numbers, or "natural"
+  */
+
+  public static LayoutVariant parse(String spec) {
+    String order = spec;
+    boolean reverseNames = false;
+    int colon = spec.indexOf(':');
+    if (colon != -1) {
+      order = spec.substring(0, colon);
+      String ties = spec.substring(colon + 1);
+      if (!ties.equals(REVERSE_NAMES_)) {
+        throw new IllegalArgumentException("Bad tie-break " + ties);
+      }
+      reverseNames = true;
+    }
+    order = order.trim();
+    if (order.equals(NATURAL_) || order.equals("")) {
+      return (new LayoutVariant(null, reverseNames));
+    }
+    String[] toks = order.split(",");
+    int[] classOrder = new int[toks.length];
+    for (int i = 0; i < toks.length; i++) {
+      classOrder[i] = Integer.parseInt(toks[i].trim());
+    }
+    return (new LayoutVariant(classOrder, reverseNames));
+  }
+}
@@ -63,7 +63,7 @@ public class Link implements Cloneable, Comparable<Link> {
 
   @Override
   public int hashCode() {
-    return (src_.hashCode() + trg_.hashCode());
+    return ((31 * src_.hashCode()) + trg_.hashCode());
   }
 
   @Override
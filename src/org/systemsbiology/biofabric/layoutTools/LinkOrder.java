@@ -0,0 +1,266 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** Writes the link order (EDA) file that goes with a NOA, so BioFabric does
+** not have to order the links itself on import. Links are grouped by the
+** row of their source node, and within a group ordered by the row of their
+** target, then by relation name. Lines look like "src (rel) trg = column".
+** Shadow links are not listed.
+**
+** The graph drops relation tags and links repeated under another tag, but
+** BioFabric keeps each (source, relation, target) as its own link, so the
+** links are streamed again from the SIF file with their tags. The ordering
+** is three stable bucket passes (relation, then target row, then source row),
+** so it takes time linear in the links plus the rows, with no comparisons.
+*/
+
+public class LinkOrder implements SifReader.TaggedLinkSink {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int INIT_LINKS_ = 1 << 16;
+  private final static int EDA_BUF_ = 1 << 16;
+  private final static byte[] OPEN_REL_ = " (".getBytes(StandardCharsets.UTF_8);
+  private final static byte[] CLOSE_REL_ = ") ".getBytes(StandardCharsets.UTF_8);
+  private final static byte[] EDA_EQUALS_ = " = ".getBytes(StandardCharsets.UTF_8);
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private int[] srcs_;
+  private int[] trgs_;
+  private int[] tags_;
+  private int numLinks_;
+  private NodeInterner tagPool_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  private LinkOrder() {
+    srcs_ = new int[INIT_LINKS_];
+    trgs_ = new int[INIT_LINKS_];
+    tags_ = new int[INIT_LINKS_];
+    numLinks_ = 0;
+    tagPool_ = new NodeInterner();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Collect a link as parsed, in the SIF sense (the parent is the source)
+  */
+
+  public void addLink(int child, int parent, ByteBuffer buf, int tagStart, int tagEnd) {
+    if (numLinks_ == srcs_.length) {
+      if (numLinks_ == Integer.MAX_VALUE - 8) {
+        throw new IllegalStateException("Too many links");
+      }
+      int newCap = (int)Math.min((long)numLinks_ * 2, Integer.MAX_VALUE - 8);
+      srcs_ = Arrays.copyOf(srcs_, newCap);
+      trgs_ = Arrays.copyOf(trgs_, newCap);
+      tags_ = Arrays.copyOf(tags_, newCap);
+    }
+    srcs_[numLinks_] = parent;
+    trgs_[numLinks_] = child;
+    tags_[numLinks_] = tagPool_.intern(buf, tagStart, tagEnd);
+    numLinks_++;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Output the link order for the given row order of the graph nodes,
+  ** gzipped if the name ends in ".gz". The graph must have been read from
+  ** sifIn, which is read again for the relation tags. Returns the number of
+  ** links written.
+  */
+
+  public static int writeEDA(String outfile, File sifIn, DagGraph graph, int[] order) throws IOException {
+    int numNodes = graph.getNodeCount();
+    if (order.length != numNodes) {
+      throw new IllegalArgumentException();
+    }
+    int[] rowOf = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      rowOf[order[i]] = i;
+    }
+
+    //
+    // Stream the links back in, and switch their nodes to rows and their tags
+    // to ranks in name order:
+    //
+
+    LinkOrder links = new LinkOrder();
+    NodeInterner streamed = new SifReader(1).stream(sifIn, links).getNamePool();
+    NodeInterner names = graph.getNamePool();
+    int[] streamedRow = new int[streamed.size()];
+    for (int i = 0; i < streamedRow.length; i++) {
+      int node = names.find(streamed, i);
+      if (node == -1) {
+        throw new IOException("Node " + streamed.getName(i) + " is not in the laid out graph");
+      }
+      streamedRow[i] = rowOf[node];
+    }
+
+    final NodeInterner tagPool = links.tagPool_;
+    int numTags = tagPool.size();
+    int[] byName = new int[numTags];
+    for (int i = 0; i < numTags; i++) {
+      byName[i] = i;
+    }
+    IntSorter.sort(byName, 0, numTags, new IntSorter.IntComparator() {
+      public int compare(int t1, int t2) {
+        return (tagPool.compareNames(t1, t2));
+      }
+    });
+    int[] tagRank = new int[numTags];
+    for (int i = 0; i < numTags; i++) {
+      tagRank[byName[i]] = i;
+    }
+
+    int numLinks = links.numLinks_;
+    int[] srcRows = links.srcs_;
+    int[] trgRows = links.trgs_;
+    int[] relRanks = links.tags_;
+    for (int i = 0; i < numLinks; i++) {
+      srcRows[i] = streamedRow[srcRows[i]];
+      trgRows[i] = streamedRow[trgRows[i]];
+      relRanks[i] = tagRank[relRanks[i]];
+    }
+
+    //
+    // Least significant key first; each pass is stable, so the source row
+    // groups come out ordered by target row, then relation:
+    //
+
+    int[] perm = new int[numLinks];
+    int[] spare = new int[numLinks];
+    for (int i = 0; i < numLinks; i++) {
+      perm[i] = i;
+    }
+    bucketPass(perm, spare, numLinks, relRanks, numTags);
+    bucketPass(spare, perm, numLinks, trgRows, numNodes);
+    bucketPass(perm, spare, numLinks, srcRows, numNodes);
+    perm = spare;
+
+    //
+    // Write it out, dropping links that are repeated outright:
+    //
+
+    OutputStream out = new BufferedOutputStream(GzipStreams.openOutput(outfile), EDA_BUF_);
+    byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    byte[] digits = new byte[11];
+    int column = 0;
+    try {
+      out.write("Link Column".getBytes(StandardCharsets.UTF_8));
+      out.write(newline);
+      int last = -1;
+      for (int i = 0; i < numLinks; i++) {
+        int link = perm[i];
+        if ((last != -1) && (srcRows[link] == srcRows[last]) &&
+            (trgRows[link] == trgRows[last]) && (relRanks[link] == relRanks[last])) {
+          continue;
+        }
+        last = link;
+        names.writeName(order[srcRows[link]], out);
+        out.write(OPEN_REL_);
+        tagPool.writeName(byName[relRanks[link]], out);
+        out.write(CLOSE_REL_);
+        names.writeName(order[trgRows[link]], out);
+        out.write(EDA_EQUALS_);
+        int at = digits.length;
+        int col = column++;
+        do {
+          digits[--at] = (byte)('0' + (col % 10));
+          col /= 10;
+        } while (col > 0);
+        out.write(digits, at, digits.length - at);
+        out.write(newline);
+      }
+    } finally {
+      out.close();
+    }
+    return (column);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Stable counting sort of the first count links in from into to, by
+  ** keys[link], with keys in [0, numKeys)
+  */
+
+  private static void bucketPass(int[] from, int[] to, int count, int[] keys, int numKeys) {
+    int[] start = new int[numKeys + 1];
+    for (int i = 0; i < count; i++) {
+      start[keys[from[i]] + 1]++;
+    }
+    for (int i = 0; i < numKeys; i++) {
+      start[i + 1] += start[i];
+    }
+    for (int i = 0; i < count; i++) {
+      int link = from[i];
+      to[start[keys[link]]++] = link;
+    }
+    return;
+  }
+}
@@ -19,23 +19,30 @@
 
 package org.systemsbiology.biofabric.layoutTools;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /****************************************************************************
 **
@@ -47,9 +54,17 @@ import java.util.TreeSet;
 ** interaction tag must be of the form "X-userSpecified-Y", where X is the
 ** source node class and Y is the target node class; XX and YY are integers
 ** N such that 0 <= N <= maxClassNum
+**
+** It can also be used in memory as a layout engine: layout() takes a
+** DagGraph, or node classes plus links, and hands back the row order. A
+** DagGraph never changes once built, so one graph can be shared, and one
+** engine can be reused for any number of graphs; the placement state is
+** reset (reusing its buffers where they are big enough) for each one.
+** Several LayoutVariants of one graph (class band orders, name tie-breaks)
+** can be laid out at once on a thread pool, sharing the graph.
 */
 
-public class MultiModeDagLayout {
+public class MultiModeDagLayout extends DagPlacement {
 
 	////////////////////////////////////////////////////////////////////////////
   //
@@ -57,16 +72,39 @@ public class MultiModeDagLayout {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  private final static int MAX_CYCLES_SHOWN_ = 10;
+  private final static int NOA_BUF_ = 1 << 16;
+  private final static byte[] NOA_EQUALS_ = {' ', '=', ' '};
+  private final static int PARALLEL_MIN_ = 1 << 13;
+  private final static int SCAN_LEAF_ = 1 << 10;
+  private final static VarHandle PENDING_ = MethodHandles.arrayElementVarHandle(int[].class);
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE MEMBERS
   //
   ////////////////////////////////////////////////////////////////////////////
 
-   private Map<String, Set<String>> l2p_;
-   private Map<String, Integer> inDegs_;
-   private Map<String, Integer> outDegs_;
-   private ArrayList<String> placeList_;
+   //
+   // Instrumentation. The counts are kept even with no metrics to report to.
+   // The rest is for the placement under way:
+   //
+
+   private LayoutMetrics metrics_;
+   private long comparisons_;
+   private long scanned_;
+   private LayoutMetrics.Phase stepPhase_;
+   private long startCompares_;
+   private long startScanned_;
+   private long numBatches_;
+   private int maxBatch_;
+
+   //
+   // Parallel placement. With a pool, placement steps of PARALLEL_MIN_ or
+   // more nodes count down children and sort candidates on it:
+   //
+
+   private ForkJoinPool pool_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -80,10 +118,11 @@ public class MultiModeDagLayout {
   */
 
   public MultiModeDagLayout() {
-     l2p_ = new HashMap<String, Set<String>>();
-     inDegs_ = new HashMap<String, Integer>();
-     outDegs_ = new HashMap<String, Integer>();
-     placeList_ = new ArrayList<String>();
+     metrics_ = null;
+     comparisons_ = 0L;
+     scanned_ = 0L;
+     stepPhase_ = null;
+     pool_ = null;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -94,293 +133,1132 @@ public class MultiModeDagLayout {
 
   /***************************************************************************
   **
-  ** Do reading of SIF file
+  ** Read the SIF file and install the graph for layout
+  */
+
+  public DagGraph readGraph(File infile) throws IOException {
+    return (readGraph(infile, 1));
+  }
+
+  /***************************************************************************
+  **
+  ** Read the SIF file using the given number of threads, and install the graph
+  ** for layout. A graph snapshot is loaded instead of parsed.
+  */
+
+  public DagGraph readGraph(File infile, int numThreads) throws IOException {
+    LayoutMetrics.Phase phase = (metrics_ == null) ? null : metrics_.begin("parse");
+    DagGraph graph;
+    if (GraphSnapshot.isSnapshot(infile)) {
+      graph = GraphSnapshot.read(infile);
+    } else {
+      graph = new SifReader(numThreads).read(infile);
+    }
+    if (phase != null) {
+      phase.end(graph.getNodeCount());
+    }
+    setGraph(graph);
+    return (graph_);
+  }
+
+  /***************************************************************************
+  **
+  ** Read the SIF file or snapshot into direct buffers, and install the graph
+  ** for layout. Close the graph when done with it.
+  */
+
+  public OffHeapGraph readOffHeapGraph(File infile) throws IOException {
+    LayoutMetrics.Phase phase = (metrics_ == null) ? null : metrics_.begin("parse");
+    OffHeapGraph graph = OffHeapGraph.read(infile);
+    if (phase != null) {
+      phase.end(graph.getNodeCount());
+    }
+    setGraph(graph);
+    return (graph);
+  }
+
+  /***************************************************************************
+  **
+  ** Do reading of SIF file into node and link collections
   */
 
   public int readNodesAndLinks(File infile, Map<String, Integer> netNodes,
                                Set<Link> netLinks) throws IOException {
-    //
-    // Read in the lines.
-    //
+    DagGraph graph = new SifReader().read(infile);
+    int numNodes = graph.getNodeCount();
+    for (int i = 0; i < numNodes; i++) {
+      netNodes.put(graph.getNodeName(i), Integer.valueOf(graph.getNodeClass(i)));
+      int end = graph.parentsEnd(i);
+      for (int j = graph.parentsStart(i); j < end; j++) {
+        netLinks.add(new Link(graph.getNodeName(i), graph.getNodeName(graph.getParent(j))));
+      }
+    }
+    return (graph.getMaxClass());
+  }
+
+  /***************************************************************************
+  **
+  ** Build the graph we are looking at (our links, opposite of input file,
+  ** are pointed backwards), and install it for layout.
+  */
+
+  public DagGraph linksToSources(Map<String, Integer> netNodes, Collection<Link> linkList) {
+    setGraph(buildGraph(netNodes, linkList));
+    return (graph_);
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out the graph and return the nodes in row order. Fails with an
+  ** IllegalStateException if the graph has a cycle.
+  */
+
+  public int[] layout(DagGraph graph) {
+    return (layout(graph, LayoutVariant.DEFAULT));
+  }
 
-    int maxClass = -1;
-    BufferedReader in = null;
+  /***************************************************************************
+  **
+  ** Lay out the graph with the given variant and return the nodes in row
+  ** order. Fails with an IllegalStateException if the graph has a cycle.
+  ** An OffHeapGraph is held in use throughout, so it cannot be freed under
+  ** the layout.
+  */
+
+  public int[] layout(DagGraph graph, LayoutVariant variant) {
+    OffHeapGraph held = startUse(graph);
     try {
-      in = new BufferedReader(new FileReader(infile));
-      String line = null;
-      while ((line = in.readLine()) != null) {
-        if (line.trim().equals("")) {
-          continue;
-        }
-        String[] tokens = line.split("\t");
-        String trueSrc = tokens[0].trim();
-        String trueTrg = tokens[2].trim();
-        // Reverse sense of the directed link to point back to source:
-        Link link = new Link(trueTrg, trueSrc);
-        netLinks.add(link);
-        String[] classes = tokens[1].split("-");
-        try {
-          Integer srcClass = Integer.valueOf(classes[0]);
-          Integer trgClass = Integer.valueOf(classes[classes.length - 1]);
-          if (srcClass.intValue() > maxClass) {
-            maxClass = srcClass.intValue();
-          }
-          if (trgClass.intValue() > maxClass) {
-            maxClass = trgClass.intValue();
-          }
-          Integer exNodeClass = netNodes.get(trueSrc);
-          if (exNodeClass != null) {
-            if (!exNodeClass.equals(srcClass)) {
-              System.err.println("Bad Src Class " + exNodeClass + " " + srcClass);
-              System.err.println("BadLine " + line);
-              throw new IOException();
-            }
-          } else {
-            netNodes.put(trueSrc, srcClass);
-          }
-          exNodeClass = netNodes.get(trueTrg);
-          if (exNodeClass != null) {
-            if (!exNodeClass.equals(trgClass)) {
-              System.err.println("Bad Trg Class " + exNodeClass + " " + trgClass);
-              System.err.println("BadLine " + line);
-              throw new IOException();
-            }
-          } else {
-            netNodes.put(trueTrg, trgClass);
-          }
-        } catch (NumberFormatException nex) {
-          throw new IOException();
-        }
-      }
+      setVariant(variant);
+      setGraph(graph);
+      placeAll(false);
+      return (getPlaceList());
     } finally {
-      if (in != null) in.close();
+      endUse(held);
     }
-    return (maxClass);
   }
 
   /***************************************************************************
   **
-  ** Build the set of guys we are looking at (our links, opposite of input file,
-  ** are pointed backwards) and degrees
+  ** Lay out the graph and return the nodes in row order. If the graph has
+  ** cycles and condenseCycles is set, the DAG of its strongly connected
+  ** components is laid out instead, with each component expanded to its
+  ** members; otherwise a cycle is an IllegalStateException.
   */
 
-  public Map<String, Set<String>> linksToSources(Set<String> nodeList, List<Link> linkList) {
+  public int[] layout(DagGraph graph, boolean condenseCycles) {
+    return (layout(graph, LayoutVariant.DEFAULT, condenseCycles));
+  }
 
-    Iterator<String> nit = nodeList.iterator();
-    while (nit.hasNext()) {
-      String node = nit.next();
-      l2p_.put(node, new HashSet<String>());
-      inDegs_.put(node, Integer.valueOf(0));
-      outDegs_.put(node, Integer.valueOf(0));
-    }
+  /***************************************************************************
+  **
+  ** As above, with the given variant
+  */
 
-    int numLink = linkList.size();
-    for (int i = 0; i < numLink; i++) {
-      Link link = linkList.get(i);
-      String src = link.getSrc();
-      String trg = link.getTrg();
-      Set<String> toTarg = l2p_.get(src);
-      toTarg.add(trg);
-      Integer deg = outDegs_.get(src);
-      outDegs_.put(src, Integer.valueOf(deg.intValue() + 1));
-      deg = inDegs_.get(trg);
-      inDegs_.put(trg, Integer.valueOf(deg.intValue() + 1));
+  public int[] layout(DagGraph graph, LayoutVariant variant, boolean condenseCycles) {
+    OffHeapGraph held = startUse(graph);
+    try {
+      StrongComponents sccs = cyclesToCondense(graph, condenseCycles);
+      if (sccs == null) {
+        return (layout(graph, variant));
+      }
+      return (sccs.expand(layout(sccs.condense(), variant)));
+    } finally {
+      endUse(held);
     }
-    return (l2p_);
   }
 
   /***************************************************************************
   **
-  ** Add to list to place
+  ** Lay out the nodes (mapped to their classes) and links, and return the
+  ** node names in row order. Links are in the backwards sense that
+  ** readNodesAndLinks() gives: the source is the child, the target its parent.
   */
 
-  public void addToPlaceList(List<String> nextBatch) {
-    placeList_.addAll(nextBatch);
-    return;
+  public List<String> layout(Map<String, Integer> netNodes, Collection<Link> linkList, boolean condenseCycles) {
+    DagGraph graph = buildGraph(netNodes, linkList);
+    return (toNames(graph, layout(graph, condenseCycles)));
   }
 
   /***************************************************************************
   **
-  ** Extract the root nodes in order from highest degree to low, but only for
-  ** the specified class number
+  ** Put the nodes in the next rows, skipping the ready-queue bookkeeping of
+  ** addToPlaceList(). Only for callers that work out the placement steps
+  ** themselves; findNextCandidates() is no good after this.
   */
 
-  public List<String> extractRoots(Map<String, Integer> netNodes, int currClass) {
+  public void placeRows(int[] nodes) {
+    int numNodes = nodes.length;
+    for (int i = 0; i < numNodes; i++) {
+      placeRow(nodes[i]);
+    }
+    return;
+  }
 
-    Map<String, Integer> roots = new HashMap<String, Integer>();
+  /***************************************************************************
+  **
+  ** Order the nodes of one placement step, given what is placed so far. The
+  ** first set is known to be in step order already; the second is sorted,
+  ** and each one is binary searched into place, so the nodes already in
+  ** order mostly never get looked at. Roots go in extractRoots() order, the
+  ** rest in findNextCandidates() order.
+  */
 
-    Iterator<String> lit = l2p_.keySet().iterator();
-    while (lit.hasNext()) {
-      String node = lit.next();
-      Integer rootClass = netNodes.get(node);
-      if (rootClass.intValue() != currClass) {
-        continue;
-      }
-      Set<String> fn = l2p_.get(node);
-      if (fn.isEmpty() ) {
-        roots.put(node, Integer.valueOf(0));
-      }
+  public int[] orderStep(int[] inOrder, int[] unordered, boolean roots) {
+    int numIn = inOrder.length;
+    int numUn = unordered.length;
+    SourcedNode[] sorted = new SourcedNode[numUn];
+    for (int i = 0; i < numUn; i++) {
+      sorted[i] = new SourcedNode(unordered[i]);
     }
-
-    lit = l2p_.keySet().iterator();
-    while (lit.hasNext()) {
-      String node = lit.next();
-      Set<String> fn = l2p_.get(node);
-      Iterator<String> sit = fn.iterator();
-      while (sit.hasNext()) {
-        String trg = sit.next();
-        Integer rs = roots.get(trg);
-        if (rs != null) {
-          roots.put(trg, Integer.valueOf(rs.intValue() + 1));
+    if (roots) {
+      Arrays.sort(sorted, new Comparator<SourcedNode>() {
+        public int compare(SourcedNode n1, SourcedNode n2) {
+          return (compareRoots(n1.getNode(), n2.getNode()));
         }
-      }
+      });
+    } else {
+      Arrays.sort(sorted, Collections.reverseOrder());
     }
 
-    ArrayList<String> buildList = new ArrayList<String>();
-
-    int count = 1;
-    while (buildList.size() < roots.size()) {
-      TreeSet<String> alpha = new TreeSet<String>(Collections.reverseOrder());
-      alpha.addAll(roots.keySet());
-      Iterator<String> rit = alpha.iterator();
-      while (rit.hasNext()) {
-        String node = rit.next();
-        Integer val = roots.get(node);
-        if (val.intValue() == count) {
-          buildList.add(node);
+    int[] retval = new int[numIn + numUn];
+    SourcedNode[] probed = (roots) ? null : new SourcedNode[numIn];
+    int done = 0;
+    for (int j = 0; j < numUn; j++) {
+      int lo = done;
+      int hi = numIn;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        boolean before;
+        if (roots) {
+          before = (compareRoots(inOrder[mid], sorted[j].getNode()) < 0);
+        } else {
+          if (probed[mid] == null) {
+            probed[mid] = new SourcedNode(inOrder[mid]);
+          }
+          before = (probed[mid].compareTo(sorted[j]) > 0);
+        }
+        if (before) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
         }
       }
-      count++;
+      System.arraycopy(inOrder, done, retval, done + j, lo - done);
+      retval[lo + j] = sorted[j].getNode();
+      done = lo;
     }
+    System.arraycopy(inOrder, done, retval, done + numUn, numIn - done);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop the current graph. The buffers are kept for the next one.
+  */
 
-    Collections.reverse(buildList);
-    return (buildList);
+  public void reset() {
+    graph_ = null;
+    variant_ = LayoutVariant.DEFAULT;
+    numPlaced_ = 0;
+    return;
   }
 
   /***************************************************************************
   **
-  ** Find the next guys to go; only dumping the given class number
+  ** Set the variant used by extractRoots(), findNextCandidates() and layout()
   */
 
-  public List<String> findNextCandidates(Map<String, Integer> netNodes, int nextClass) {
+  public void setVariant(LayoutVariant variant) {
+    variant_ = variant;
+    return;
+  }
 
-    HashSet<String> quickie = new HashSet<String>(placeList_);
+  /***************************************************************************
+  **
+  ** Report phases and counters to the given metrics; null for none
+  */
 
-    TreeSet<SourcedNode> nextOut = new TreeSet<SourcedNode>(Collections.reverseOrder());
+  public void setMetrics(LayoutMetrics metrics) {
+    metrics_ = metrics;
+    return;
+  }
 
-    Iterator<String> lit = l2p_.keySet().iterator();
-    while (lit.hasNext()) {
-      String node = lit.next();
-      if (quickie.contains(node)) {
-        continue;
-      }
-      Integer nodeClass = netNodes.get(node);
-      if (nodeClass.intValue() != nextClass) {
-        continue;
-      }
-      Set<String> fn = l2p_.get(node);
-      boolean allThere = true;
-      Iterator<String> sit = fn.iterator();
-      while (sit.hasNext()) {
-        String trg = sit.next();
-        if (!quickie.contains(trg)) {
-          allThere = false;
-          break;
-        }
-      }
-      if (allThere) {
-        nextOut.add(new SourcedNode(node));
-      }
+  /***************************************************************************
+  **
+  ** Run big placement steps on the pool (null to stay on one thread). The
+  ** steps and their order are exactly those of the one-thread layout.
+  */
+
+  public void setParallel(ForkJoinPool pool) {
+    pool_ = pool;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Install the graph to lay out, and set up the placement state. This is
+  ** the work linksToSources() used to do, and is reported as that phase.
+  */
+
+  public void setGraph(DagGraph graph) {
+    LayoutMetrics.Phase phase = (metrics_ == null) ? null : metrics_.begin("linksToSources", metricsVariant(), -1);
+    startPlacement(graph);
+    int numNodes = graph_.getNodeCount();
+    if (phase != null) {
+      phase.end(numNodes);
     }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the graph being laid out
+  */
 
-    ArrayList<String> retval = new ArrayList<String>();
-    Iterator<SourcedNode> noit = nextOut.iterator();
-    while (noit.hasNext()) {
-      SourcedNode sn = noit.next();
-      retval.add(sn.getNode());
+  public DagGraph getGraph() {
+    return (graph_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of nodes placed so far
+  */
+
+  public int getPlacedCount() {
+    return (numPlaced_);
+  }
+
+  /***************************************************************************
+  **
+  ** Add to list to place
+  */
+
+  public void addToPlaceList(int[] nextBatch) {
+    
+    //
+    // Only the children of the placed nodes can become ready:
+    //
+    
+    int numNext = nextBatch.length;
+    if ((pool_ != null) && (numNext >= PARALLEL_MIN_)) {
+      addToPlaceListParallel(nextBatch);
+      return;
     }
-    return (retval);
+    for (int i = 0; i < numNext; i++) {
+      int node = nextBatch[i];
+      placeRow(node);
+      int end = graph_.childrenEnd(node);
+      for (int j = graph_.childrenStart(node); j < end; j++) {
+        parentPlaced(graph_.getChild(j));
+      }
+    }
+    return;
   }
 
+  /***************************************************************************
+  **
+  ** Extract the root nodes in order from highest degree to low, but only for
+  ** the specified class number. Ties go in name order. This is a single
+  ** counting-sort pass on the child counts; roots without children go last.
+  */
+
+  @Override
+  public int[] extractRoots(int currClass) {
+    return (super.extractRoots(currClass));
+  }
 
   /***************************************************************************
   **
-  ** Output NOA
+  ** Find the next guys to go; only dumping the given class number
   */
 
-  public void writeNOA(String outfile) throws IOException {
-    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outfile), "UTF-8")));
+  public int[] findNextCandidates(int nextClass) {
 
     //
-    // Write out the NOA file:
+    // Just drain the queue for the class we are dumping:
     //
+    
+    int numReady = countReady(nextClass);
+    scanned_ += numReady;
+    if ((pool_ != null) && (numReady >= PARALLEL_MIN_)) {
+      return (findNextCandidatesParallel(nextClass, numReady));
+    }
+
+    int[] cands = drainReady(nextClass, numReady);
+    numReady = cands.length;
+    SourcedNode[] nextOut = new SourcedNode[numReady];
+    for (int i = 0; i < numReady; i++) {
+      nextOut[i] = new SourcedNode(cands[i]);
+    }
+    Arrays.sort(nextOut, 0, numReady, Collections.reverseOrder());
 
-    int numNode = placeList_.size(); 
-    out.println("Node Row");   
-    for (int i = 0; i < numNode; i++) {
-      String node = placeList_.get(i);
-      out.print(node);
-      out.print(" = ");
-      out.println(i);
+    int[] retval = new int[numReady];
+    for (int i = 0; i < numReady; i++) {
+      retval[i] = nextOut[i].getNode();
     }
-    out.close();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Output NOA
+  */
+
+  public void writeNOA(String outfile) throws IOException {
+    writeNOA(outfile, graph_, getPlaceList());
     return;
   }
 
+  /***************************************************************************
+  **
+  ** Get the nodes placed so far, in row order
+  */
+
+  public int[] getPlaceList() {
+    return (Arrays.copyOf(placeList_, numPlaced_));
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC STATIC METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Build the graph for the nodes (mapped to their classes) and links, which
+  ** are pointed backwards, from child to parent. Nodes are numbered in the
+  ** iteration order of the map.
+  */
+
+  public static DagGraph buildGraph(Map<String, Integer> netNodes, Collection<Link> linkList) {
+
+    int numNodes = netNodes.size();
+    String[] names = new String[numNodes];
+    int[] classes = new int[numNodes];
+    HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    int count = 0;
+    Iterator<String> nit = netNodes.keySet().iterator();
+    while (nit.hasNext()) {
+      String node = nit.next();
+      names[count] = node;
+      classes[count] = netNodes.get(node).intValue();
+      ids.put(node, Integer.valueOf(count++));
+    }
+
+    int numLink = linkList.size();
+    int[] linkSrc = new int[numLink];
+    int[] linkTrg = new int[numLink];
+    count = 0;
+    Iterator<Link> lit = linkList.iterator();
+    while (lit.hasNext()) {
+      Link link = lit.next();
+      linkSrc[count] = ids.get(link.getSrc()).intValue();
+      linkTrg[count++] = ids.get(link.getTrg()).intValue();
+    }
+    ids = null;
+    
+    return (new DagGraph(names, classes, linkSrc, linkTrg, numLink));
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out each of the variants of the graph, in parallel on the given
+  ** number of threads, and return the row orders. Cycles are handled as
+  ** by layout(); the components are only found (and condensed) once.
+  */
+
+  public static int[][] layoutVariants(DagGraph graph, List<LayoutVariant> variants,
+                                       boolean condenseCycles, int numThreads) throws IOException {
+    StrongComponents sccs = cyclesToCondense(graph, condenseCycles);
+    return (runVariants(graph, sccs, variants, null, numThreads, null));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the names for a row order of the graph nodes
+  */
+
+  public static List<String> toNames(DagGraph graph, int[] order) {
+    ArrayList<String> retval = new ArrayList<String>(order.length);
+    for (int i = 0; i < order.length; i++) {
+      retval.add(graph.getNodeName(order[i]));
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Output NOA for the given row order of the graph nodes, gzipped if the
+  ** name ends in ".gz"
+  */
+
+  public static void writeNOA(String outfile, DagGraph graph, int[] order) throws IOException {
+    OutputStream out = new BufferedOutputStream(GzipStreams.openOutput(outfile), NOA_BUF_);
+    try {
+      writeNOA(out, graph, order);
+    } finally {
+      out.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Output NOA for the given row order of the graph nodes to the stream,
+  ** which should be buffered. The stream is left open.
+  */
+
+  public static void writeNOA(OutputStream out, DagGraph graph, int[] order) throws IOException {
+    NodeInterner names = graph.getNamePool();
+    byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    byte[] digits = new byte[11];
+
+    //
+    // Write out the NOA file, with the names straight from the pool:
+    //
+
+    out.write("Node Row".getBytes(StandardCharsets.UTF_8));
+    out.write(newline);
+    for (int i = 0; i < order.length; i++) {
+      names.writeName(order[i], out);
+      out.write(NOA_EQUALS_);
+      int at = digits.length;
+      int row = i;
+      do {
+        digits[--at] = (byte)('0' + (row % 10));
+        row /= 10;
+      } while (row > 0);
+      out.write(digits, at, digits.length - at);
+      out.write(newline);
+    }
+    return;
+  }
+
   /***************************************************************************
   **
   ** Run program
   */
 
   public static void main(String[] argv) {
-  	  	
-  	if (argv.length != 2) {
-  		System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.MultiModeDagLayout sifInfile noaOutfile");
+  	
+    int numThreads = 1;
+    boolean condenseCycles = false;
+    boolean offHeap = false;
+    boolean parallelPlace = false;
+    File cacheDir = null;
+    File snapshotOut = null;
+    String metricsOut = null;
+    String edaOut = null;
+    long cacheBytes = LayoutCache.DEFAULT_MAX_BYTES;
+    ArrayList<LayoutVariant> variants = new ArrayList<LayoutVariant>();
+    ArrayList<String> variantOuts = new ArrayList<String>();
+    int argc = 0;
+    try {
+      while ((argc < argv.length) && argv[argc].startsWith("-")) {
+        if (argv[argc].equals("-threads") && (argc + 1 < argv.length)) {
+          numThreads = Integer.parseInt(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-variant") && (argc + 2 < argv.length)) {
+          variants.add(LayoutVariant.parse(argv[argc + 1]));
+          variantOuts.add(argv[argc + 2]);
+          argc += 3;
+        } else if (argv[argc].equals("-condenseCycles")) {
+          condenseCycles = true;
+          argc++;
+        } else if (argv[argc].equals("-offHeap")) {
+          offHeap = true;
+          argc++;
+        } else if (argv[argc].equals("-parallelPlace")) {
+          parallelPlace = true;
+          argc++;
+        } else if (argv[argc].equals("-cache") && (argc + 1 < argv.length)) {
+          cacheDir = new File(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-writeSnapshot") && (argc + 1 < argv.length)) {
+          snapshotOut = new File(argv[argc + 1]);
+          argc += 2;
+        } else if (argv[argc].equals("-linkOrder") && (argc + 1 < argv.length)) {
+          edaOut = argv[argc + 1];
+          argc += 2;
+        } else if (argv[argc].equals("-metrics") && (argc + 1 < argv.length)) {
+          metricsOut = argv[argc + 1];
+          argc += 2;
+        } else if (argv[argc].equals("-cacheMB") && (argc + 1 < argv.length)) {
+          cacheBytes = Long.parseLong(argv[argc + 1]) << 20;
+          argc += 2;
+        } else {
+          break;
+        }
+      }
+    } catch (IllegalArgumentException ex) {
+      argc = -1;
+    }
+
+    int numArgs = argv.length - argc;
+  	if ((argc == -1) || (numThreads < 1) || (offHeap && (numThreads != 1)) || (cacheBytes < 0) || ((edaOut != null) && (numArgs != 2)) || (numArgs > 2) || (numArgs < ((variants.isEmpty() && (snapshotOut == null)) ? 2 : 1))) {
+  		System.out.println("Usage: java -cp BioFabricModalDAGLayout.jar org.systemsbiology.biofabric.layoutTools.MultiModeDagLayout [-threads N | -offHeap] [-parallelPlace] [-condenseCycles] [-cache dir [-cacheMB N]] [-writeSnapshot snapshotOutfile] [-metrics jsonOutfile] [-linkOrder edaOutfile] [-variant classOrder[:revnames] noaOutfile]... sifInfile [noaOutfile]");
+  		System.out.println("  -linkOrder needs a SIF infile and the plain noaOutfile; the link order goes with that layout");
   		return;
   	}
   	
     MultiModeDagLayout cp = new MultiModeDagLayout();
+    LayoutMetrics metrics = new LayoutMetrics();
+    cp.setMetrics(metrics);
+    DagGraph graph = null;
     try {
-      String sifIn = argv[0];
-      String noaOut = argv[1];
+      String sifIn = argv[argc];
+      String noaOut = (numArgs == 2) ? argv[argc + 1] : null;
+      if ((edaOut != null) && GraphSnapshot.isSnapshot(new File(sifIn))) {
+        throw new IllegalArgumentException("Link order needs the SIF file for the relations");
+      }
       
-      Map<String, Integer> nodeToClass = new HashMap<String, Integer>();
-      HashSet<Link> links = new HashSet<Link>();
-      int maxClass = cp.readNodesAndLinks(new File(sifIn), nodeToClass, links);
-      HashSet<String> nodeSet = new HashSet<String>(nodeToClass.keySet());
-      HashSet<String> nodesToGo = new HashSet<String>(nodeSet);
-      cp.linksToSources(nodeSet, new ArrayList<Link>(links));
-      for (int i = 0; i <= maxClass; i++) {
-        List<String> placeList = cp.extractRoots(nodeToClass, i);
-        cp.addToPlaceList(placeList);
-        nodesToGo.removeAll(placeList);
+      //
+      // An off-heap graph is held in use until everything is written, and
+      // only then closed:
+      //
+
+      if (offHeap) {
+        OffHeapGraph offHeapGraph = cp.readOffHeapGraph(new File(sifIn));
+        offHeapGraph.acquire();
+        graph = offHeapGraph;
+      } else {
+        graph = cp.readGraph(new File(sifIn), numThreads);
+      }
+      if (snapshotOut != null) {
+        GraphSnapshot.write(graph, snapshotOut);
+      }
+      if (noaOut != null) {
+        variants.add(0, LayoutVariant.DEFAULT);
+        variantOuts.add(0, noaOut);
+      } else if (variants.isEmpty()) {
+        return;
       }
 
       //
-      // Find the guys whose precursors have already been placed and place them:
+      // Layouts already in the cache just get copied out. An entry is only
+      // there if the same graph and options laid out fine before:
       //
 
-      while (!nodesToGo.isEmpty()) {
-        for (int i = 0; i <= maxClass; i++) {
-          List<String> nextBatch = cp.findNextCandidates(nodeToClass, i);
-          cp.addToPlaceList(nextBatch);
-          nodesToGo.removeAll(nextBatch);
-          System.out.println("Nodes to Go = " + nodesToGo.size());
+      LayoutCache cache = null;
+      ArrayList<String> cacheKeys = new ArrayList<String>();
+      if (cacheDir != null) {
+        cache = new LayoutCache(cacheDir, cacheBytes);
+        String digest = LayoutCache.graphDigest(graph);
+        int i = 0;
+        while (i < variants.size()) {
+          String key = LayoutCache.key(digest, cacheOptions(variants.get(i), condenseCycles, variantOuts.get(i)));
+          if (cache.fetch(key, variantOuts.get(i))) {
+            System.out.println("Wrote " + variantOuts.get(i) + " from cache for " + variants.get(i));
+            variants.remove(i);
+            variantOuts.remove(i);
+          } else {
+            cacheKeys.add(key);
+            i++;
+          }
         }
       }
 
-      cp.writeNOA(noaOut);
+      //
+      // The link order goes with the plain layout, read back from its NOA if
+      // that came from the cache or was laid out with other variants:
+      //
+
+      int[] noaOrder = null;
+      if (!variants.isEmpty()) {
+        noaOrder = layoutAll(cp, graph, variants, variantOuts, condenseCycles,
+                             parallelPlace, numThreads, metrics);
+        if (cache != null) {
+          for (int i = 0; i < variants.size(); i++) {
+            cache.store(cacheKeys.get(i), variantOuts.get(i));
+          }
+        }
+      }
+      if (edaOut != null) {
+        LayoutMetrics.Phase phase = metrics.begin("writeLinkOrder");
+        if (noaOrder == null) {
+          noaOrder = IncrementalLayout.readNOA(new File(noaOut), graph);
+        }
+        phase.end(LinkOrder.writeEDA(edaOut, new File(sifIn), graph, noaOrder));
+      }
+
+      metrics.commitCounters();
+      if (metricsOut != null) {
+        metrics.writeJson(metricsOut);
+      }
     } catch (Exception ex) {
       System.err.println("Caught exception:" + ex);
+    } finally {
+      if (graph instanceof OffHeapGraph) {
+        ((OffHeapGraph)graph).release();
+        ((OffHeapGraph)graph).close();
+      }
     }
     return;
   }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Degrees, from the graph
+  */
+
+  @Override
+  int parentCount(int node) {
+    return (graph_.getParentCount(node));
+  }
+
+  @Override
+  int childCount(int node) {
+    return (graph_.getChildCount(node));
+  }
+
+  /***************************************************************************
+  **
+  ** Report the placement steps of placeAll() to the metrics, if any
+  */
+
+  @Override
+  void placementStarted() {
+    startCompares_ = comparisons_;
+    startScanned_ = scanned_;
+    numBatches_ = 0L;
+    maxBatch_ = 0;
+    return;
+  }
+
+  @Override
+  void stepStarted(int round) {
+    if (metrics_ != null) {
+      stepPhase_ = metrics_.begin((round == -1) ? "extractRoots" : "findNextCandidates", metricsVariant(), round);
+    }
+    return;
+  }
+
+  @Override
+  void batchPlaced(int size) {
+    if (size > 0) {
+      numBatches_++;
+      maxBatch_ = Math.max(maxBatch_, size);
+    }
+    return;
+  }
+
+  @Override
+  void stepEnded(int round, int numPlaced) {
+    if (stepPhase_ != null) {
+      stepPhase_.end(numPlaced);
+      stepPhase_ = null;
+      if (round == -1) {
+        metrics_.count("roots", numPlaced);
+      }
+    }
+    return;
+  }
+
+  @Override
+  void placementEnded(int rounds) {
+    if (metrics_ != null) {
+      metrics_.count("rounds", rounds);
+      metrics_.count("batches", numBatches_);
+      metrics_.max("maxBatch", maxBatch_);
+      metrics_.count("comparisons", comparisons_ - startCompares_);
+      metrics_.count("candidatesScanned", scanned_ - startScanned_);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The variant to tag phases with; none for the default
+  */
+
+  private LayoutVariant metricsVariant() {
+    return ((variant_ == LayoutVariant.DEFAULT) ? null : variant_);
+  }
+
+  /***************************************************************************
+  **
+  ** Root order: more children first, ties by name
+  */
+
+  private int compareRoots(int node1, int node2) {
+    comparisons_++;
+    int kids1 = graph_.getChildCount(node1);
+    int kids2 = graph_.getChildCount(node2);
+    if (kids1 != kids2) {
+      return (kids2 - kids1);
+    }
+    int diff = graph_.getNameRank(node1) - graph_.getNameRank(node2);
+    return ((variant_.isReverseNames()) ? -diff : diff);
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out the variants not found in the cache and write their NOAs.
+  ** Returns the row order when the plain layout was the only one, else null.
+  */
+
+  private static int[] layoutAll(MultiModeDagLayout cp, DagGraph graph, List<LayoutVariant> variants,
+                                 List<String> variantOuts, boolean condenseCycles, boolean parallelPlace,
+                                 int numThreads, LayoutMetrics metrics) throws IOException {
+
+    //
+    // A cycle would leave nodes that can never be placed. Either bail out now,
+    // or lay out the DAG of the strongly connected components:
+    //
+
+    LayoutMetrics.Phase cyclePhase = metrics.begin("findCycles");
+    StrongComponents sccs = cyclesToCondense(graph, condenseCycles);
+    cyclePhase.end(graph.getNodeCount());
+    boolean condensed = (sccs != null);
+    if (condensed) {
+      System.err.println("Condensing " + sccs.describeCycles(MAX_CYCLES_SHOWN_));
+      cp.setGraph(sccs.condense());
+    }
+
+    //
+    // Variants get laid out together, each on its own engine:
+    //
+
+    if ((variants.size() > 1) || (variants.get(0) != LayoutVariant.DEFAULT)) {
+      runVariants(graph, sccs, variants, variantOuts, numThreads, metrics);
+      return (null);
+    }
+    ForkJoinPool placePool = null;
+    if (parallelPlace) {
+      placePool = new ForkJoinPool((numThreads > 1) ? numThreads : Runtime.getRuntime().availableProcessors());
+      cp.setParallel(placePool);
+    }
+    try {
+      cp.placeAll(true);
+    } finally {
+      if (placePool != null) {
+        placePool.shutdown();
+      }
+    }
+    LayoutMetrics.Phase phase = metrics.begin("writeNOA");
+    int[] order = (condensed) ? sccs.expand(cp.getPlaceList()) : cp.getPlaceList();
+    writeNOA(variantOuts.get(0), graph, order);
+    phase.end(graph.getNodeCount());
+    return (order);
+  }
+
+  /***************************************************************************
+  **
+  ** The layout options, as they go into the cache key
+  */
+
+  private static String cacheOptions(LayoutVariant variant, boolean condenseCycles, String noaOut) {
+    String retval = variant + ((condenseCycles) ? ";condenseCycles" : "");
+    return ((GzipStreams.isGzipName(noaOut)) ? retval + ";gz" : retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Find the components to condense the graph by; null if there are no
+  ** cycles. Cycles without condensing are an IllegalStateException.
+  */
+
+  private static StrongComponents cyclesToCondense(DagGraph graph, boolean condenseCycles) {
+    StrongComponents sccs = new StrongComponents(graph);
+    if (!sccs.hasCycles()) {
+      return (null);
+    }
+    if (!condenseCycles) {
+      throw new IllegalStateException("Input is not a DAG: " + sccs.describeCycles(MAX_CYCLES_SHOWN_));
+    }
+    return (sccs);
+  }
+
+  /***************************************************************************
+  **
+  ** Start a use of the graph if it is an OffHeapGraph, and return it for
+  ** endUse(); else null
+  */
+
+  private static OffHeapGraph startUse(DagGraph graph) {
+    if (!(graph instanceof OffHeapGraph)) {
+      return (null);
+    }
+    OffHeapGraph retval = (OffHeapGraph)graph;
+    retval.acquire();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** End a use from startUse()
+  */
+
+  private static void endUse(OffHeapGraph held) {
+    if (held != null) {
+      held.release();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Lay out the variants in parallel. With components given, the condensed
+  ** graph is what gets laid out, and each order is expanded back. With
+  ** output files given, each task writes its own NOA as well. Every variant
+  ** runs even if one fails; the first failure is then thrown. Metrics may
+  ** be null.
+  */
+
+  private static int[][] runVariants(final DagGraph graph, final StrongComponents sccs,
+                                     List<LayoutVariant> variants, final List<String> noaOuts,
+                                     int numThreads, final LayoutMetrics metrics) throws IOException {
+
+    final DagGraph layoutGraph = (sccs == null) ? graph : sccs.condense();
+    int numVariants = variants.size();
+    ArrayList<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(numVariants);
+    for (int i = 0; i < numVariants; i++) {
+      final LayoutVariant variant = variants.get(i);
+      final String noaOut = (noaOuts == null) ? null : noaOuts.get(i);
+      tasks.add(new Callable<int[]>() {
+        public int[] call() throws IOException {
+          MultiModeDagLayout engine = new MultiModeDagLayout();
+          engine.setMetrics(metrics);
+          int[] order = engine.layout(layoutGraph, variant);
+          if (sccs != null) {
+            order = sccs.expand(order);
+          }
+          if (noaOut != null) {
+            LayoutMetrics.Phase phase = (metrics == null) ? null : metrics.begin("writeNOA", variant, -1);
+            writeNOA(noaOut, graph, order);
+            if (phase != null) {
+              phase.end(order.length);
+            }
+            System.out.println("Wrote " + noaOut + " for " + variant);
+          }
+          return (order);
+        }
+      });
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(numThreads, numVariants)));
+    try {
+      List<Future<int[]>> results = pool.invokeAll(tasks);
+      int[][] retval = new int[numVariants][];
+      for (int i = 0; i < numVariants; i++) {
+        try {
+          retval[i] = results.get(i).get();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException)cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          }
+          throw new IllegalStateException(cause);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+      return (retval);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** addToPlaceList() for a big batch. The rows go in first; then the child
+  ** counts are taken down on the pool, atomically since children are shared.
+  ** No node in a batch is a parent of another, and the ready queues get
+  ** sorted when drained, so it does not matter that the ready children come
+  ** back in a different order.
+  */
+
+  private void addToPlaceListParallel(int[] nextBatch) {
+    int numNext = nextBatch.length;
+    for (int i = 0; i < numNext; i++) {
+      placeRow(nextBatch[i]);
+    }
+    int[] ready = pool_.invoke(new ReadyScan(nextBatch, 0, numNext));
+    for (int i = 0; i < ready.length; i++) {
+      enqueueReady(ready[i]);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** findNextCandidates() for a big step. The sort keys go into flat arrays
+  ** on the pool, and the candidates are sorted there by index, so comparing
+  ** allocates nothing.
+  */
+
+  private int[] findNextCandidatesParallel(int nextClass, int numReady) {
+    int[] cands = drainReady(nextClass, numReady);
+    int numCand = cands.length;
+
+    CandidateKeys keys = new CandidateKeys(cands, numCand);
+    pool_.invoke(keys.new KeyFill(0, numCand));
+    int[] order = new int[numCand];
+    for (int i = 0; i < numCand; i++) {
+      order[i] = i;
+    }
+    IntSorter.parallelSort(order, 0, numCand, keys, pool_);
+    comparisons_ += keys.getComparisons();
+
+    int[] retval = new int[numCand];
+    for (int i = 0; i < numCand; i++) {
+      retval[i] = cands[order[i]];
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Counts down the children of part of a batch, and gives back the ones
+  ** that became ready
+  */
+
+  private class ReadyScan extends RecursiveTask<int[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] batch_;
+    private int from_;
+    private int to_;
+
+    ReadyScan(int[] batch, int from, int to) {
+      batch_ = batch;
+      from_ = from;
+      to_ = to;
+    }
+
+    protected int[] compute() {
+      if (to_ - from_ > SCAN_LEAF_) {
+        int mid = (from_ + to_) >>> 1;
+        ReadyScan left = new ReadyScan(batch_, from_, mid);
+        left.fork();
+        int[] right = new ReadyScan(batch_, mid, to_).compute();
+        int[] found = left.join();
+        int[] retval = Arrays.copyOf(found, found.length + right.length);
+        System.arraycopy(right, 0, retval, found.length, right.length);
+        return (retval);
+      }
+      int[] found = new int[16];
+      int numFound = 0;
+      for (int i = from_; i < to_; i++) {
+        int node = batch_[i];
+        int end = graph_.childrenEnd(node);
+        for (int j = graph_.childrenStart(node); j < end; j++) {
+          int kid = graph_.getChild(j);
+          if (((int)PENDING_.getAndAdd(pendingParents_, kid, -1) == 1) && (rowIndex_[kid] == -1)) {
+            if (numFound == found.length) {
+              found = Arrays.copyOf(found, numFound * 2);
+            }
+            found[numFound++] = kid;
+          }
+        }
+      }
+      return ((numFound == found.length) ? found : Arrays.copyOf(found, numFound));
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** The SourcedNode sort keys of a set of candidates, in flat arrays: the
+  ** sorted parent rows of candidate i are rows_[rowStart_[i], + numRows_[i]).
+  ** Compares candidate indices in findNextCandidates() order, i.e. the
+  ** reverse of SourcedNode.compareTo().
+  */
+
+  private class CandidateKeys implements IntSorter.IntComparator {
+
+    private int[] cands_;
+    private int[] rowStart_;
+    private int[] numRows_;
+    private int[] rows_;
+    private int[] inDeg_;
+    private int[] nameRank_;
+    private LongAdder comparisons_;
+
+    CandidateKeys(int[] cands, int numCand) {
+      cands_ = cands;
+      rowStart_ = new int[numCand + 1];
+      for (int i = 0; i < numCand; i++) {
+        rowStart_[i + 1] = rowStart_[i] + graph_.getParentCount(cands[i]);
+      }
+      numRows_ = new int[numCand];
+      rows_ = new int[rowStart_[numCand]];
+      inDeg_ = new int[numCand];
+      nameRank_ = new int[numCand];
+      comparisons_ = (metrics_ == null) ? null : new LongAdder();
+    }
+
+    long getComparisons() {
+      return ((comparisons_ == null) ? 0L : comparisons_.sum());
+    }
+
+    public int compare(int key1, int key2) {
+      if (comparisons_ != null) {
+        comparisons_.increment();
+      }
+      return (compareKeys(rows_, rowStart_[key1], numRows_[key1], inDeg_[key1], nameRank_[key1],
+                          rows_, rowStart_[key2], numRows_[key2], inDeg_[key2], nameRank_[key2]));
+    }
+
+    /***************************************************************************
+    **
+    ** Fills in the keys for a range of candidates, as the SourcedNode
+    ** constructor does
+    */
+
+    class KeyFill extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private int from_;
+      private int to_;
+
+      KeyFill(int from, int to) {
+        from_ = from;
+        to_ = to;
+      }
+
+      protected void compute() {
+        if (to_ - from_ > SCAN_LEAF_) {
+          int mid = (from_ + to_) >>> 1;
+          invokeAll(new KeyFill(from_, mid), new KeyFill(mid, to_));
+          return;
+        }
+        boolean reverse = variant_.isReverseNames();
+        int numNodes = graph_.getNodeCount();
+        for (int i = from_; i < to_; i++) {
+          int node = cands_[i];
+          int start = graph_.parentsStart(node);
+          int end = graph_.parentsEnd(node);
+          int at = rowStart_[i];
+          int count = 0;
+          for (int j = start; j < end; j++) {
+            int row = rowIndex_[graph_.getParent(j)];
+            if (row != -1) {
+              rows_[at + count++] = row;
+            }
+          }
+          Arrays.sort(rows_, at, at + count);
+          numRows_[i] = count;
+          inDeg_[i] = graph_.getChildCount(node);
+          int rank = graph_.getNameRank(node);
+          nameRank_[i] = (reverse) ? numNodes - 1 - rank : rank;
+        }
+        return;
+      }
+    }
+  }
+
   /****************************************************************************
   **
   ** A class that allows us to sort nodes based on input order
@@ -388,25 +1266,51 @@ public class MultiModeDagLayout {
 
   public class SourcedNode implements Comparable<SourcedNode> {
 
-    private String node_;
+    private int node_;
+    private int[] parentRows_;
+    private int inDeg_;
+    private int nameRank_;
 
+    //
+    // Parents are all placed by the time a node is a candidate, so the sorted
+    // rows of the parents are fixed for the batch and can be grabbed up front:
+    //
 
-    public SourcedNode(String node) {
+    public SourcedNode(int node) {
       node_ = node;
+      int start = graph_.parentsStart(node);
+      int end = graph_.parentsEnd(node);
+      parentRows_ = new int[end - start];
+      int count = 0;
+      for (int i = start; i < end; i++) {
+        int row = rowIndex_[graph_.getParent(i)];
+        if (row != -1) {
+          parentRows_[count++] = row;
+        }
+      }
+      if (count < parentRows_.length) {
+        parentRows_ = Arrays.copyOf(parentRows_, count);
+      }
+      Arrays.sort(parentRows_);
+      inDeg_ = graph_.getChildCount(node);
+      nameRank_ = graph_.getNameRank(node);
+      if (variant_.isReverseNames()) {
+        nameRank_ = graph_.getNodeCount() - 1 - nameRank_;
+      }
     }
 
-    public String getNode() {
+    public int getNode() {
       return (node_);
     }
 
     @Override
     public int hashCode() {
-      return (node_.hashCode());
+      return (node_);
     }
 
     @Override
     public String toString() {
-      return (" node = " + node_);
+      return (" node = " + graph_.getNodeName(node_));
     }
 
     @Override
@@ -415,45 +1319,28 @@ public class MultiModeDagLayout {
         return (false);
       }
       SourcedNode otherDeg = (SourcedNode)other;
-      return ((this.node_ == null) ? (otherDeg.node_ == null) : this.node_.equals(otherDeg.node_));
+      return (this.node_ == otherDeg.node_);
     }
 
     public int compareTo(SourcedNode otherDeg) {
 
       //
-      // Same name, same node:
+      // Same ID, same node:
       //
 
-      if (this.node_.equals(otherDeg.node_)) {
+      if (this.node_ == otherDeg.node_) {
         return (0);
       }
+      comparisons_++;
 
-      Set<String> mySet = l2p_.get(this.node_);
-      Set<String> hisSet = l2p_.get(otherDeg.node_);
+      int[] myList = this.parentRows_;
+      int[] hisList = otherDeg.parentRows_;
 
-      TreeSet<Integer> myOrder = new TreeSet<Integer>();
-      TreeSet<Integer> hisOrder = new TreeSet<Integer>();
-      int numNode = placeList_.size();
-      for (int i = 0; i < numNode; i++) {
-        String node = placeList_.get(i);
-        if (mySet.contains(node)) {
-          myOrder.add(Integer.valueOf(i));
-        }
-        if (hisSet.contains(node)) {
-          hisOrder.add(Integer.valueOf(i));
-        }
-      }
-
-      ArrayList<Integer> myList = new ArrayList<Integer>(myOrder);
-      ArrayList<Integer> hisList = new ArrayList<Integer>(hisOrder);
-
-      int mySize = myOrder.size();
-      int hisSize = hisOrder.size();
+      int mySize = myList.length;
+      int hisSize = hisList.length;
       int min = Math.min(mySize, hisSize);
       for (int i = 0; i < min; i++) {
-        int myVal = myList.get(i).intValue();
-        int hisVal = hisList.get(i).intValue();
-        int diff = hisVal - myVal;
+        int diff = hisList[i] - myList[i];
         if (diff != 0) {
           return (diff);
         }
@@ -464,17 +1351,12 @@ public class MultiModeDagLayout {
         return (diffSize);
       }
 
-      int myIn = inDegs_.get(this.node_);
-      int hisIn = inDegs_.get(otherDeg.node_);
-      int diffIn = myIn - hisIn;
+      int diffIn = this.inDeg_ - otherDeg.inDeg_;
       if (diffIn != 0) {
         return (diffIn);
       }
 
-      if (this.node_ == null) {
-        return ((otherDeg.node_ == null) ? 0 : -1);
-      }
-      return (this.node_.compareTo(otherDeg.node_));
+      return (this.nameRank_ - otherDeg.nameRank_);
     }
   }
 }
@@ -0,0 +1,508 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** Interns UTF-8 node names to dense int IDs, handed out in order of first
+** appearance. Lookups hash the raw bytes where they sit, so no String is
+** built until the names are needed.
+**
+** The interner is also the name pool a DagGraph keeps. All the names sit
+** back to back in one byte arena, with an index of where each starts, so a
+** name costs its bytes plus three ints (start, hash and its share of the
+** table) instead of a String, its array and its map entries. Names can be
+** written and compared straight from the arena.
+*/
+
+public class NodeInterner {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int INIT_SLOTS_ = 1024;
+  private final static int INIT_ARENA_ = 8192;
+  private final static int MAX_ARENA_ = Integer.MAX_VALUE - 8;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private byte[] arena_;
+  private int[] nameStart_;
+  private int[] hashes_;
+  private int size_;
+  private int[] slots_;
+  private int mask_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public NodeInterner() {
+    arena_ = new byte[INIT_ARENA_];
+    nameStart_ = new int[(INIT_SLOTS_ / 2) + 1];
+    hashes_ = new int[INIT_SLOTS_ / 2];
+    size_ = 0;
+    slots_ = new int[INIT_SLOTS_];
+    mask_ = INIT_SLOTS_ - 1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor for a pool already laid out, e.g. from a snapshot. The
+  ** arrays are kept, not copied; names are not checked for repeats.
+  */
+
+  NodeInterner(byte[] arena, int[] nameStart, int numNames) {
+    arena_ = arena;
+    nameStart_ = nameStart;
+    hashes_ = new int[numNames];
+    size_ = numNames;
+    int numSlots = INIT_SLOTS_;
+    while (numSlots < numNames * 2) {
+      numSlots *= 2;
+    }
+    slots_ = new int[numSlots];
+    mask_ = numSlots - 1;
+    for (int i = 0; i < numNames; i++) {
+      hashes_[i] = hash(arena_, nameStart_[i], nameStart_[i + 1]);
+      int slot = hashes_[i] & mask_;
+      while (slots_[slot] != 0) {
+        slot = (slot + 1) & mask_;
+      }
+      slots_[slot] = i + 1;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the number of names
+  */
+
+  public int size() {
+    return (size_);
+  }
+
+  /***************************************************************************
+  **
+  ** Intern the name held in buf[start, end); returns the ID
+  */
+
+  public int intern(ByteBuffer buf, int start, int end) {
+    int hash = hash(buf, start, end);
+    int slot = hash & mask_;
+    while (true) {
+      int entry = slots_[slot];
+      if (entry == 0) {
+        break;
+      }
+      int id = entry - 1;
+      if ((hashes_[id] == hash) && matches(id, buf, start, end)) {
+        return (id);
+      }
+      slot = (slot + 1) & mask_;
+    }
+
+    int at = reserve(end - start);
+    for (int i = start; i < end; i++) {
+      arena_[at++] = buf.get(i);
+    }
+    return (add(end - start, hash, slot));
+  }
+
+  /***************************************************************************
+  **
+  ** Intern the given name; returns the ID
+  */
+
+  public int intern(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    return (intern(ByteBuffer.wrap(bytes), 0, bytes.length));
+  }
+
+  /***************************************************************************
+  **
+  ** Intern a name held by another interner; returns the ID
+  */
+
+  public int intern(NodeInterner other, int otherId) {
+    int slot = probe(other, otherId);
+    if (slots_[slot] != 0) {
+      return (slots_[slot] - 1);
+    }
+    int otherStart = other.nameStart_[otherId];
+    int len = other.nameStart_[otherId + 1] - otherStart;
+    int at = reserve(len);
+    System.arraycopy(other.arena_, otherStart, arena_, at, len);
+    return (add(len, other.hashes_[otherId], slot));
+  }
+
+  /***************************************************************************
+  **
+  ** Look up a name held by another interner without adding it; returns the
+  ** ID, or -1 if the name is not here. If a name was appended more than
+  ** once, any of its IDs may come back.
+  */
+
+  public int find(NodeInterner other, int otherId) {
+    return (slots_[probe(other, otherId)] - 1);
+  }
+
+  /***************************************************************************
+  **
+  ** Add the name under a new ID even if it is already there, so a list of
+  ** names can be pooled with their positions as IDs; returns the ID
+  */
+
+  public int append(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(bytes, 0, bytes.length);
+    int slot = hash & mask_;
+    while (slots_[slot] != 0) {
+      slot = (slot + 1) & mask_;
+    }
+    int at = reserve(bytes.length);
+    System.arraycopy(bytes, 0, arena_, at, bytes.length);
+    return (add(bytes.length, hash, slot));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a name as a String
+  */
+
+  public String getName(int id) {
+    int start = nameStart_[id];
+    return (new String(arena_, start, nameStart_[id + 1] - start, StandardCharsets.UTF_8));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a copy of the UTF-8 bytes of a name
+  */
+
+  public byte[] getNameBytes(int id) {
+    return (Arrays.copyOfRange(arena_, nameStart_[id], nameStart_[id + 1]));
+  }
+
+  /***************************************************************************
+  **
+  ** Write the UTF-8 bytes of a name straight from the arena
+  */
+
+  public void writeName(int id, OutputStream out) throws IOException {
+    int start = nameStart_[id];
+    out.write(arena_, start, nameStart_[id + 1] - start);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Compare two names in the order String.compareTo() would put them,
+  ** without building the Strings. For UTF-8 that is code point order except
+  ** that characters past U+FFFF, being surrogate pairs in a String, come
+  ** before U+E000 through U+FFFF.
+  */
+
+  public int compareNames(int id1, int id2) {
+    int start1 = nameStart_[id1];
+    int end1 = nameStart_[id1 + 1];
+    int start2 = nameStart_[id2];
+    int end2 = nameStart_[id2 + 1];
+    int len1 = end1 - start1;
+    int len2 = end2 - start2;
+    int min = Math.min(len1, len2);
+    int diff = Arrays.mismatch(arena_, start1, start1 + min, arena_, start2, start2 + min);
+    if (diff == -1) {
+      return (Integer.compare(len1, len2));
+    }
+
+    //
+    // The names agree up to the start of the character holding the first
+    // different byte, so compare the two characters there:
+    //
+
+    int at = diff;
+    while ((at > 0) && ((arena_[start1 + at] & 0xC0) == 0x80)) {
+      at--;
+    }
+    int cp1 = codePoint(arena_, start1 + at, end1);
+    int cp2 = codePoint(arena_, start2 + at, end2);
+    if (cp1 == cp2) {
+      return (Integer.compare(arena_[start1 + diff] & 0xFF, arena_[start2 + diff] & 0xFF));
+    }
+    int unit1 = (cp1 < 0x10000) ? cp1 : 0xD800 + ((cp1 - 0x10000) >>> 10);
+    int unit2 = (cp2 < 0x10000) ? cp2 : 0xD800 + ((cp2 - 0x10000) >>> 10);
+    if (unit1 != unit2) {
+      return (Integer.compare(unit1, unit2));
+    }
+    return (Integer.compare(cp1, cp2));
+  }
+
+  /***************************************************************************
+  **
+  ** Let go of the room kept for growth, once no more names will be added
+  */
+
+  public void trim() {
+    int used = nameStart_[size_];
+    if (arena_.length > used) {
+      arena_ = Arrays.copyOf(arena_, used);
+    }
+    if (nameStart_.length > size_ + 1) {
+      nameStart_ = Arrays.copyOf(nameStart_, size_ + 1);
+      hashes_ = Arrays.copyOf(hashes_, size_);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Build the names as Strings, in ID order
+  */
+
+  public String[] toNames() {
+    String[] retval = new String[size_];
+    for (int i = 0; i < size_; i++) {
+      retval[i] = getName(i);
+    }
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The arena and name starts, for writing them out as they are
+  */
+
+  byte[] getArena() {
+    return (arena_);
+  }
+
+  int getNameStart(int id) {
+    return (nameStart_[id]);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Make room at the end of the arena for a new name; returns where it goes
+  */
+
+  private int reserve(int len) {
+    int used = nameStart_[size_];
+    if ((long)used + len > MAX_ARENA_) {
+      throw new IllegalStateException("Node names take more than " + MAX_ARENA_ + " bytes");
+    }
+    if (used + len > arena_.length) {
+      long newSize = Math.max((long)used + len, 2L * arena_.length);
+      arena_ = Arrays.copyOf(arena_, (int)Math.min(newSize, MAX_ARENA_));
+    }
+    return (used);
+  }
+
+  /***************************************************************************
+  **
+  ** Find the slot holding a name held by another interner, or the empty slot
+  ** where it would go
+  */
+
+  private int probe(NodeInterner other, int otherId) {
+    int otherStart = other.nameStart_[otherId];
+    int otherEnd = other.nameStart_[otherId + 1];
+    int hash = other.hashes_[otherId];
+    int slot = hash & mask_;
+    while (true) {
+      int entry = slots_[slot];
+      if (entry == 0) {
+        return (slot);
+      }
+      int id = entry - 1;
+      if ((hashes_[id] == hash) &&
+          Arrays.equals(arena_, nameStart_[id], nameStart_[id + 1], other.arena_, otherStart, otherEnd)) {
+        return (slot);
+      }
+      slot = (slot + 1) & mask_;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Add the name just copied to the end of the arena, at the given empty slot
+  */
+
+  private int add(int len, int hash, int slot) {
+    if (size_ == hashes_.length) {
+      int newCap = Math.max(size_ * 2, INIT_SLOTS_ / 2);
+      hashes_ = Arrays.copyOf(hashes_, newCap);
+      nameStart_ = Arrays.copyOf(nameStart_, newCap + 1);
+    }
+    int id = size_++;
+    nameStart_[size_] = nameStart_[id] + len;
+    hashes_[id] = hash;
+    slots_[slot] = id + 1;
+
+    //
+    // Keep the table at most half full:
+    //
+
+    if (size_ * 2 > slots_.length) {
+      int[] newSlots = new int[slots_.length * 2];
+      int newMask = newSlots.length - 1;
+      for (int i = 0; i < size_; i++) {
+        int newSlot = hashes_[i] & newMask;
+        while (newSlots[newSlot] != 0) {
+          newSlot = (newSlot + 1) & newMask;
+        }
+        newSlots[newSlot] = i + 1;
+      }
+      slots_ = newSlots;
+      mask_ = newMask;
+    }
+    return (id);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the pooled name matches the bytes
+  */
+
+  private boolean matches(int id, ByteBuffer buf, int start, int end) {
+    int at = nameStart_[id];
+    if (nameStart_[id + 1] - at != end - start) {
+      return (false);
+    }
+    for (int i = start; i < end; i++) {
+      if (arena_[at++] != buf.get(i)) {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Hash the bytes, with a final mix so linear probing behaves
+  */
+
+  private static int hash(ByteBuffer buf, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = (31 * hash) + buf.get(i);
+    }
+    return (mix(hash));
+  }
+
+  private static int hash(byte[] bytes, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = (31 * hash) + bytes[i];
+    }
+    return (mix(hash));
+  }
+
+  private static int mix(int hash) {
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+    hash *= 0xc2b2ae35;
+    hash ^= (hash >>> 16);
+    return (hash);
+  }
+
+  /***************************************************************************
+  **
+  ** Decode the UTF-8 character starting at bytes[at]. A malformed one is
+  ** just its first byte.
+  */
+
+  private static int codePoint(byte[] bytes, int at, int end) {
+    int lead = bytes[at] & 0xFF;
+    int more;
+    int cp;
+    if (lead < 0x80) {
+      return (lead);
+    } else if ((lead & 0xE0) == 0xC0) {
+      more = 1;
+      cp = lead & 0x1F;
+    } else if ((lead & 0xF0) == 0xE0) {
+      more = 2;
+      cp = lead & 0x0F;
+    } else if ((lead & 0xF8) == 0xF0) {
+      more = 3;
+      cp = lead & 0x07;
+    } else {
+      return (lead);
+    }
+    if (at + more >= end) {
+      return (lead);
+    }
+    for (int i = 1; i <= more; i++) {
+      int next = bytes[at + i] & 0xFF;
+      if ((next & 0xC0) != 0x80) {
+        return (lead);
+      }
+      cp = (cp << 6) | (next & 0x3F);
+    }
+    return (cp);
+  }
+}
@@ -0,0 +1,620 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** A DagGraph whose adjacency, row starts (and so degrees), classes and name
+** ranks live in direct buffers outside the Java heap, so a graph with
+** hundreds of millions of links does not need a heap big enough for the
+** collector to choke on. Only the name pool stays on the heap. The layout
+** runs on it unchanged, since it only ever goes through the DagGraph
+** getters.
+**
+** The buffers are freed as soon as close() is called, rather than whenever
+** the collector gets round to it. After that, the getters throw an
+** IllegalStateException. A thread that reads the graph while another may
+** close it must hold a use, from acquire() to release(): close() waits for
+** those to end before it frees anything, so no read can touch freed memory.
+** Size the JVM's -XX:MaxDirectMemorySize for the graph rather than -Xmx.
+** Freeing goes through the JDK's buffer cleaner. If that cannot be reached,
+** making a store fails, rather than leave the memory to the collector.
+*/
+
+public class OffHeapGraph extends DagGraph implements Closeable {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static int FIXED_SHIFT_ = 27;
+  private final static int GROW_SHIFT_ = 20;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static Object unsafe_;
+  private static Method invokeCleaner_;
+  private static Exception noCleaner_;
+
+  static {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe_ = theUnsafe.get(null);
+      invokeCleaner_ = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      noCleaner_ = null;
+    } catch (Exception ex) {
+      unsafe_ = null;
+      invokeCleaner_ = null;
+      noCleaner_ = ex;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private IntStore classes_;
+  private IntStore ranks_;
+  private IntStore byRank_;
+  private IntStore parentStarts_;
+  private IntStore parentList_;
+  private IntStore childStarts_;
+  private IntStore childList_;
+  private boolean closing_;
+  private volatile boolean freed_;
+  private int users_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor for stores that already hold a built graph (see the DagGraph
+  ** constructor that keeps its arrays). The stores now belong to the graph.
+  */
+
+  OffHeapGraph(NodeInterner names, int maxClass, IntStore nodeClass, IntStore byName,
+               IntStore parentStart, IntStore parents, IntStore childStart, IntStore children) {
+    super(names, maxClass);
+    classes_ = nodeClass;
+    byRank_ = byName;
+    parentStarts_ = parentStart;
+    parentList_ = parents;
+    childStarts_ = childStart;
+    childList_ = children;
+    int numNodes = names.size();
+    ranks_ = new IntStore(numNodes);
+    for (int i = 0; i < numNodes; i++) {
+      ranks_.set(byRank_.get(i), i);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build from the nodes of a link-free graph and the links (child, parent)
+  ** in two stores. As in the DagGraph constructor, duplicate links are
+  ** dropped.
+  */
+
+  private OffHeapGraph(DagGraph nodes, IntStore linkSrc, IntStore linkTrg) {
+    super(nodes.getNamePool(), nodes.getMaxClass());
+    boolean built = false;
+    try {
+      int numNodes = nodes.getNodeCount();
+      int numLinks = linkSrc.size();
+      classes_ = new IntStore(numNodes);
+      ranks_ = new IntStore(numNodes);
+      byRank_ = new IntStore(numNodes);
+      for (int i = 0; i < numNodes; i++) {
+        classes_.set(i, nodes.getNodeClass(i));
+        ranks_.set(i, nodes.getNameRank(i));
+        byRank_.set(i, nodes.getNodeForNameRank(i));
+      }
+
+      //
+      // Bucket the links by child, then sort each row so duplicates can be
+      // squeezed out:
+      //
+
+      parentStarts_ = new IntStore(numNodes + 1);
+      for (int i = 0; i < numLinks; i++) {
+        int at = linkSrc.get(i) + 1;
+        parentStarts_.set(at, parentStarts_.get(at) + 1);
+      }
+      int maxRow = 0;
+      for (int i = 0; i < numNodes; i++) {
+        maxRow = Math.max(maxRow, parentStarts_.get(i + 1));
+        parentStarts_.set(i + 1, parentStarts_.get(i + 1) + parentStarts_.get(i));
+      }
+      IntStore fill = new IntStore(numNodes);
+      IntStore rawParents = new IntStore(numLinks);
+      try {
+        for (int i = 0; i < numNodes; i++) {
+          fill.set(i, parentStarts_.get(i));
+        }
+        for (int i = 0; i < numLinks; i++) {
+          int child = linkSrc.get(i);
+          int at = fill.get(child);
+          fill.set(child, at + 1);
+          rawParents.set(at, linkTrg.get(i));
+        }
+      } finally {
+        fill.free();
+      }
+
+      int[] row = new int[maxRow];
+      int write = 0;
+      for (int i = 0; i < numNodes; i++) {
+        int start = parentStarts_.get(i);
+        int end = parentStarts_.get(i + 1);
+        int len = end - start;
+        rawParents.get(start, row, len);
+        Arrays.sort(row, 0, len);
+        parentStarts_.set(i, write);
+        for (int j = 0; j < len; j++) {
+          if ((j == 0) || (row[j] != row[j - 1])) {
+            rawParents.set(write++, row[j]);
+          }
+        }
+      }
+      parentStarts_.set(numNodes, write);
+      if (write == numLinks) {
+        parentList_ = rawParents;
+      } else {
+        parentList_ = new IntStore(write);
+        for (int i = 0; i < write; i++) {
+          parentList_.set(i, rawParents.get(i));
+        }
+        rawParents.free();
+      }
+
+      //
+      // Reverse for the children. Walking children in ID order keeps each row sorted:
+      //
+
+      childStarts_ = new IntStore(numNodes + 1);
+      for (int i = 0; i < write; i++) {
+        int at = parentList_.get(i) + 1;
+        childStarts_.set(at, childStarts_.get(at) + 1);
+      }
+      for (int i = 0; i < numNodes; i++) {
+        childStarts_.set(i + 1, childStarts_.get(i + 1) + childStarts_.get(i));
+      }
+      fill = new IntStore(numNodes);
+      childList_ = new IntStore(write);
+      try {
+        for (int i = 0; i < numNodes; i++) {
+          fill.set(i, childStarts_.get(i));
+        }
+        for (int i = 0; i < numNodes; i++) {
+          int end = parentStarts_.get(i + 1);
+          for (int j = parentStarts_.get(i); j < end; j++) {
+            int parent = parentList_.get(j);
+            int at = fill.get(parent);
+            fill.set(parent, at + 1);
+            childList_.set(at, i);
+          }
+        }
+      } finally {
+        fill.free();
+      }
+      built = true;
+    } finally {
+      if (!built) {
+        close();
+      }
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Start a use of the graph; fails if it is closed
+  */
+
+  public synchronized void acquire() {
+    if (closing_) {
+      throw new IllegalStateException("Graph is closed");
+    }
+    users_++;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** End a use of the graph
+  */
+
+  public synchronized void release() {
+    if (users_ == 0) {
+      throw new IllegalStateException("Graph is not in use");
+    }
+    if (--users_ == 0) {
+      notifyAll();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Free the buffers, once the uses under way have ended; new uses fail
+  ** from now on. Safe to call more than once.
+  */
+
+  public synchronized void close() {
+    closing_ = true;
+    boolean interrupted = false;
+    while (users_ > 0) {
+      try {
+        wait();
+      } catch (InterruptedException iex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    freed_ = true;
+    classes_ = IntStore.free(classes_);
+    ranks_ = IntStore.free(ranks_);
+    byRank_ = IntStore.free(byRank_);
+    parentStarts_ = IntStore.free(parentStarts_);
+    parentList_ = IntStore.free(parentList_);
+    childStarts_ = IntStore.free(childStarts_);
+    childList_ = IntStore.free(childList_);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the bytes held outside the heap; zero once closed
+  */
+
+  public synchronized long getOffHeapBytes() {
+    return (IntStore.bytes(classes_) + IntStore.bytes(ranks_) + IntStore.bytes(byRank_) +
+            IntStore.bytes(parentStarts_) + IntStore.bytes(parentList_) +
+            IntStore.bytes(childStarts_) + IntStore.bytes(childList_));
+  }
+
+  /***************************************************************************
+  **
+  ** The DagGraph getters, from the buffers. The check comes first, so the
+  ** buffers are never touched once close() has started freeing them.
+  */
+
+  public int getLinkCount() {
+    checkOpen();
+    return (parentList_.size());
+  }
+
+  public int getNodeClass(int node) {
+    checkOpen();
+    return (classes_.get(node));
+  }
+
+  public int getNameRank(int node) {
+    checkOpen();
+    return (ranks_.get(node));
+  }
+
+  public int getNodeForNameRank(int rank) {
+    checkOpen();
+    return (byRank_.get(rank));
+  }
+
+  public int getParentCount(int node) {
+    checkOpen();
+    return (parentStarts_.get(node + 1) - parentStarts_.get(node));
+  }
+
+  public int parentsStart(int node) {
+    checkOpen();
+    return (parentStarts_.get(node));
+  }
+
+  public int parentsEnd(int node) {
+    checkOpen();
+    return (parentStarts_.get(node + 1));
+  }
+
+  public int getParent(int index) {
+    checkOpen();
+    return (parentList_.get(index));
+  }
+
+  public int getChildCount(int node) {
+    checkOpen();
+    return (childStarts_.get(node + 1) - childStarts_.get(node));
+  }
+
+  public int childrenStart(int node) {
+    checkOpen();
+    return (childStarts_.get(node));
+  }
+
+  public int childrenEnd(int node) {
+    checkOpen();
+    return (childStarts_.get(node + 1));
+  }
+
+  public int getChild(int index) {
+    checkOpen();
+    return (childList_.get(index));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Load a graph snapshot or SIF file. Links from a SIF go straight into
+  ** direct buffers as they are parsed, so the heap never holds them.
+  */
+
+  public static OffHeapGraph read(File infile) throws IOException {
+    if (GraphSnapshot.isSnapshot(infile)) {
+      return (GraphSnapshot.readOffHeap(infile));
+    }
+    final IntStore linkSrc = new IntStore();
+    final IntStore linkTrg = new IntStore();
+    try {
+      DagGraph nodes = new SifReader().stream(infile, new SifReader.LinkSink() {
+        public void addLink(int child, int parent) {
+          linkSrc.add(child);
+          linkTrg.add(parent);
+        }
+      });
+      return (new OffHeapGraph(nodes, linkSrc, linkTrg));
+    } finally {
+      linkSrc.free();
+      linkTrg.free();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Fail if the graph is closed
+  */
+
+  private void checkOpen() {
+    if (freed_) {
+      throw new IllegalStateException("Graph is closed");
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Release a direct buffer now
+  */
+
+  private static void release(ByteBuffer buf) {
+    try {
+      invokeCleaner_.invoke(unsafe_, buf);
+    } catch (Exception ex) {
+      throw new IllegalStateException("Cannot free a direct buffer", ex);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Fail if direct buffers could not be freed once made
+  */
+
+  private static void checkCleaner() {
+    if (noCleaner_ != null) {
+      throw new IllegalStateException("No access to the JDK's buffer cleaner", noCleaner_);
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** An int array in direct buffers, in segments since one buffer tops out
+  ** at 2GB. A store made with a size is zeroed and has that size; one made
+  ** without grows as ints are added.
+  */
+
+  static class IntStore {
+
+    private ByteBuffer[] bytes_;
+    private IntBuffer[] segs_;
+    private int shift_;
+    private int mask_;
+    private int size_;
+
+    IntStore(int size) {
+      checkCleaner();
+      shift_ = FIXED_SHIFT_;
+      mask_ = (1 << shift_) - 1;
+      int numSegs = (size + mask_) >>> shift_;
+      bytes_ = new ByteBuffer[numSegs];
+      segs_ = new IntBuffer[numSegs];
+      for (int i = 0; i < numSegs; i++) {
+        int segSize = Math.min(size - (i << shift_), 1 << shift_);
+        allocate(i, segSize);
+      }
+      size_ = size;
+    }
+
+    IntStore() {
+      checkCleaner();
+      shift_ = GROW_SHIFT_;
+      mask_ = (1 << shift_) - 1;
+      bytes_ = new ByteBuffer[0];
+      segs_ = new IntBuffer[0];
+      size_ = 0;
+    }
+
+    int size() {
+      return (size_);
+    }
+
+    int get(int index) {
+      return (segs_[index >>> shift_].get(index & mask_));
+    }
+
+    void set(int index, int val) {
+      segs_[index >>> shift_].put(index & mask_, val);
+      return;
+    }
+
+    void get(int index, int[] dst, int count) {
+      int done = 0;
+      while (done < count) {
+        int at = index + done;
+        int off = at & mask_;
+        int num = Math.min(count - done, (1 << shift_) - off);
+        IntBuffer seg = segs_[at >>> shift_];
+        for (int i = 0; i < num; i++) {
+          dst[done + i] = seg.get(off + i);
+        }
+        done += num;
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Copy ints from the buffer (in whatever byte order it has) in at index
+    */
+
+    void put(int index, IntBuffer src) {
+      while (src.hasRemaining()) {
+        int off = index & mask_;
+        int num = Math.min(src.remaining(), (1 << shift_) - off);
+        IntBuffer seg = segs_[index >>> shift_].duplicate();
+        seg.position(off);
+        IntBuffer part = src.duplicate();
+        part.limit(part.position() + num);
+        seg.put(part);
+        src.position(src.position() + num);
+        index += num;
+      }
+      return;
+    }
+
+    void add(int val) {
+      int seg = size_ >>> shift_;
+      if (seg == segs_.length) {
+        bytes_ = Arrays.copyOf(bytes_, seg + 1);
+        segs_ = Arrays.copyOf(segs_, seg + 1);
+        allocate(seg, 1 << shift_);
+      }
+      segs_[seg].put(size_ & mask_, val);
+      size_++;
+      return;
+    }
+
+    void free() {
+      for (int i = 0; i < bytes_.length; i++) {
+        if (bytes_[i] != null) {
+          release(bytes_[i]);
+          bytes_[i] = null;
+          segs_[i] = null;
+        }
+      }
+      size_ = 0;
+      return;
+    }
+
+    static IntStore free(IntStore store) {
+      if (store != null) {
+        store.free();
+      }
+      return (null);
+    }
+
+    static long bytes(IntStore store) {
+      if (store == null) {
+        return (0L);
+      }
+      long retval = 0L;
+      for (int i = 0; i < store.bytes_.length; i++) {
+        if (store.bytes_[i] != null) {
+          retval += store.bytes_[i].capacity();
+        }
+      }
+      return (retval);
+    }
+
+    private void allocate(int seg, int numInts) {
+      bytes_[seg] = ByteBuffer.allocateDirect(4 * numInts).order(ByteOrder.nativeOrder());
+      segs_[seg] = bytes_[seg].asIntBuffer();
+      return;
+    }
+  }
+}
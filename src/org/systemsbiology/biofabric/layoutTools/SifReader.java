@@ -0,0 +1,886 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************************
+**
+** Reads the layout SIF file straight into a DagGraph. The file is memory
+** mapped a window at a time and tokenized at the byte level: the tab-separated
+** fields and the class numbers in the "X-tag-Y" interaction tag are found in
+** place, and node names go directly into a NodeInterner. Names are assumed
+** to be UTF-8. The tokenizing follows the original line-based reader: blank
+** lines are skipped, names are trimmed, the class numbers are the first and
+** last dash-separated pieces of the tag, and a node showing up with two
+** different classes is an error.
+**
+** With more than one thread, the file is cut into chunks at line boundaries
+** that are parsed in a fork-join pool, each into its own interner and link
+** set. The chunks are then merged in file order. Node IDs are handed out
+** in order of first appearance either way, and class conflicts are reported
+** for the same (first) bad line the sequential read would stop at, so the
+** graph and the errors do not depend on the thread count.
+**
+** A gzipped file cannot be cut into chunks, so it is parsed in one piece
+** while an InflatePump inflates the next blocks on its own thread.
+*/
+
+public class SifReader {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final static long WINDOW_ = 1L << 28;
+  private final static long MIN_CHUNK_ = 1L << 20;
+  private final static int CHUNKS_PER_THREAD_ = 4;
+  private final static int SCAN_BUF_ = 1 << 16;
+  private final static int PUMP_BLOCK_ = 1 << 20;
+  private final static int PUMP_BLOCKS_ = 4;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER INTERFACES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Takes links as they are parsed. Wrap any IOException in an
+  ** UncheckedIOException; stream() unwraps it.
+  */
+
+  public interface LinkSink {
+    public void addLink(int child, int parent);
+  }
+
+  /***************************************************************************
+  **
+  ** Takes links as they are parsed, along with the (trimmed) tag of each, as
+  ** the bytes in buf[tagStart, tagEnd). IOExceptions are wrapped as for a
+  ** LinkSink.
+  */
+
+  public interface TaggedLinkSink {
+    public void addLink(int child, int parent, ByteBuffer buf, int tagStart, int tagEnd);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private int numThreads_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor for a sequential reader
+  */
+
+  public SifReader() {
+    this(1);
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor for a reader using the given number of threads
+  */
+
+  public SifReader(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException();
+    }
+    numThreads_ = numThreads;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Read the SIF file
+  */
+
+  public DagGraph read(File infile) throws IOException {
+    if (GzipStreams.isGzipped(infile)) {
+      return (readGzipped(infile));
+    }
+    RandomAccessFile raf = new RandomAccessFile(infile, "r");
+    try {
+      FileChannel chan = raf.getChannel();
+      long[] bounds = chunkBounds(chan);
+      int numChunks = bounds.length - 1;
+      SifChunk[] chunks = new SifChunk[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        chunks[i] = new SifChunk(chan, bounds[i], bounds[i + 1], (numChunks > 1), null, null);
+      }
+      if (numChunks == 1) {
+        chunks[0].parse();
+        return (merge(infile, chunks, null));
+      }
+      ForkJoinPool pool = new ForkJoinPool(numThreads_);
+      try {
+        pool.invoke(new ParseTask(chunks, 0, numChunks));
+        return (merge(infile, chunks, pool));
+      } catch (UncheckedIOException uioex) {
+        throw uioex.getCause();
+      } finally {
+        pool.shutdown();
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Read the SIF file without keeping the links: each one goes to the sink
+  ** as it is parsed, in the backwards sense and with any repeats. What comes
+  ** back is the graph of the nodes alone (names and classes, no links). The
+  ** file is read in one piece, whatever the thread count.
+  */
+
+  public DagGraph stream(File infile, LinkSink sink) throws IOException {
+    return (streamLinks(infile, sink, null));
+  }
+
+  /***************************************************************************
+  **
+  ** As above, for a sink that wants the tags too
+  */
+
+  public DagGraph stream(File infile, TaggedLinkSink sink) throws IOException {
+    return (streamLinks(infile, null, sink));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Stream the links to whichever sink is given
+  */
+
+  private DagGraph streamLinks(File infile, LinkSink sink, TaggedLinkSink tagSink) throws IOException {
+    SifChunk chunk;
+    try {
+      if (GzipStreams.isGzipped(infile)) {
+        chunk = new SifChunk(null, 0L, 0L, false, sink, tagSink);
+        GzipStreams.InflatePump pump = new GzipStreams.InflatePump(infile, PUMP_BLOCK_, PUMP_BLOCKS_);
+        try {
+          chunk.parse(pump);
+        } finally {
+          pump.close();
+        }
+      } else {
+        RandomAccessFile raf = new RandomAccessFile(infile, "r");
+        try {
+          FileChannel chan = raf.getChannel();
+          chunk = new SifChunk(chan, 0L, chan.size(), false, sink, tagSink);
+          chunk.parse();
+        } finally {
+          raf.close();
+        }
+      }
+    } catch (UncheckedIOException uioex) {
+      throw uioex.getCause();
+    }
+    if (chunk.errKey_ != Long.MAX_VALUE) {
+      reportError(infile, chunk.errKey_ / 2, chunk.errReport_, chunk.errMessage_, chunk.errText_);
+    }
+    int numNodes = chunk.interner_.size();
+    chunk.interner_.trim();
+    return (new DagGraph(chunk.interner_, Arrays.copyOf(chunk.nodeClass_, numNodes), new int[0], new int[0], 0));
+  }
+
+  /***************************************************************************
+  **
+  ** Read a gzipped SIF file, parsing while the pump inflates ahead
+  */
+
+  private DagGraph readGzipped(File infile) throws IOException {
+    SifChunk chunk = new SifChunk(null, 0L, 0L, false, null, null);
+    GzipStreams.InflatePump pump = new GzipStreams.InflatePump(infile, PUMP_BLOCK_, PUMP_BLOCKS_);
+    try {
+      chunk.parse(pump);
+    } finally {
+      pump.close();
+    }
+    return (merge(infile, new SifChunk[] {chunk}, null));
+  }
+
+  /***************************************************************************
+  **
+  ** Cut the file into chunks that start at line boundaries
+  */
+
+  private long[] chunkBounds(FileChannel chan) throws IOException {
+    long size = chan.size();
+    long numChunks = 1;
+    if (numThreads_ > 1) {
+      numChunks = Math.max(1L, Math.min((long)numThreads_ * CHUNKS_PER_THREAD_, size / MIN_CHUNK_));
+    }
+    long[] bounds = new long[(int)numChunks + 1];
+    int count = 1;
+    for (int i = 1; i < numChunks; i++) {
+      long bound = nextLineStart(chan, (size * i) / numChunks);
+      if ((bound > bounds[count - 1]) && (bound < size)) {
+        bounds[count++] = bound;
+      }
+    }
+    bounds[count++] = size;
+    return (Arrays.copyOf(bounds, count));
+  }
+
+  /***************************************************************************
+  **
+  ** Find the start of the first line beginning at or after pos
+  */
+
+  private long nextLineStart(FileChannel chan, long pos) throws IOException {
+    long size = chan.size();
+    ByteBuffer buf = ByteBuffer.allocate(SCAN_BUF_);
+    long at = pos - 1;
+    while (at < size) {
+      buf.clear();
+      int got = chan.read(buf, at);
+      if (got <= 0) {
+        break;
+      }
+      for (int i = 0; i < got; i++) {
+        byte ch = buf.get(i);
+        if (ch == '\n') {
+          return (at + i + 1);
+        } else if (ch == '\r') {
+          if (i + 1 < got) {
+            return (at + i + ((buf.get(i + 1) == '\n') ? 2 : 1));
+          }
+          ByteBuffer one = ByteBuffer.allocate(1);
+          boolean crlf = (chan.read(one, at + i + 1) == 1) && (one.get(0) == '\n');
+          return (at + i + (crlf ? 2 : 1));
+        }
+      }
+      at += got;
+    }
+    return (size);
+  }
+
+  /***************************************************************************
+  **
+  ** Merge the parsed chunks in file order, reporting the first bad line
+  */
+
+  private DagGraph merge(File infile, SifChunk[] chunks, ForkJoinPool pool) throws IOException {
+
+    SifChunk first = chunks[0];
+    if (first.errKey_ != Long.MAX_VALUE) {
+      reportError(infile, first.errKey_ / 2, first.errReport_, first.errMessage_, first.errText_);
+    }
+    NodeInterner names = first.interner_;
+    int[] nodeClass = first.nodeClass_;
+    int numChunks = chunks.length;
+    int[][] maps = new int[numChunks][];
+    int[] linkOffset = new int[numChunks + 1];
+    linkOffset[1] = first.links_.size();
+    long lineBase = first.lineCount_;
+
+    for (int i = 1; i < numChunks; i++) {
+      SifChunk chunk = chunks[i];
+      int numLocal = chunk.interner_.size();
+      int[] map = new int[numLocal];
+      long errKey = chunk.errKey_;
+      String errReport = chunk.errReport_;
+      String errMessage = chunk.errMessage_;
+
+      //
+      // Visiting the local IDs in order of first appearance hands out new global IDs
+      // in the same order a sequential read does. A node whose first class in this
+      // chunk differs from what earlier chunks said is a conflict at the line where
+      // it first shows up here:
+      //
+
+      for (int j = 0; j < numLocal; j++) {
+        int before = names.size();
+        int node = names.intern(chunk.interner_, j);
+        map[j] = node;
+        if (node == before) {
+          if (node == nodeClass.length) {
+            nodeClass = Arrays.copyOf(nodeClass, node * 2);
+          }
+          nodeClass[node] = chunk.nodeClass_[j];
+        } else if ((nodeClass[node] != chunk.nodeClass_[j]) && (chunk.firstKey_[j] < errKey)) {
+          errKey = chunk.firstKey_[j];
+          String err = ((errKey % 2) == 0) ? "Bad Src Class" : "Bad Trg Class";
+          errReport = err + " " + nodeClass[node] + " " + chunk.nodeClass_[j];
+          errMessage = err;
+        }
+      }
+      if (errKey != Long.MAX_VALUE) {
+        String text = (errKey == chunk.errKey_) ? chunk.errText_ : chunk.lineText(errKey / 2);
+        reportError(infile, lineBase + (errKey / 2), errReport, errMessage, text);
+      }
+      maps[i] = map;
+      linkOffset[i + 1] = linkOffset[i] + chunk.links_.size();
+      if (linkOffset[i + 1] < linkOffset[i]) {
+        throw new IOException("Too many links");
+      }
+      lineBase += chunk.lineCount_;
+    }
+
+    //
+    // Relabel the links to the global IDs; each chunk is independent now:
+    //
+
+    int numLinks = linkOffset[numChunks];
+    int[] linkSrc = new int[numLinks];
+    int[] linkTrg = new int[numLinks];
+    RemapTask remap = new RemapTask(chunks, maps, linkOffset, linkSrc, linkTrg, 0, numChunks);
+    if (numChunks > 1) {
+      pool.invoke(remap);
+    } else {
+      remap.compute();
+    }
+    int numNodes = names.size();
+    names.trim();
+    return (new DagGraph(names, Arrays.copyOf(nodeClass, numNodes), linkSrc, linkTrg, numLinks));
+  }
+
+  /***************************************************************************
+  **
+  ** Report a bad line. The file name goes on each line, so reports from
+  ** files read at the same time can be told apart.
+  */
+
+  private static void reportError(File infile, long lineNum, String report, String message,
+                                  String text) throws IOException {
+    if (report != null) {
+      System.err.println(infile + ": " + report);
+    }
+    System.err.println(infile + ": BadLine " + lineNum + ": " + text);
+    throw new IOException(message + " at line " + lineNum);
+  }
+
+  /***************************************************************************
+  **
+  ** Parse a non-negative class number, as Integer.valueOf() would; -1 if bad
+  */
+
+  private static int parseClass(ByteBuffer buf, int start, int end) {
+    if ((start < end) && (buf.get(start) == '+')) {
+      start++;
+    }
+    if (start == end) {
+      return (-1);
+    }
+    long val = 0;
+    for (int i = start; i < end; i++) {
+      int digit = buf.get(i) - '0';
+      if ((digit < 0) || (digit > 9)) {
+        return (-1);
+      }
+      val = (val * 10) + digit;
+      if (val > Integer.MAX_VALUE) {
+        return (-1);
+      }
+    }
+    return ((int)val);
+  }
+
+  /***************************************************************************
+  **
+  ** Find the next tab, or -1
+  */
+
+  private static int indexOfTab(ByteBuffer buf, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buf.get(i) == '\t') {
+        return (i);
+      }
+    }
+    return (-1);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the range is nothing but tabs (String.split() drops those)
+  */
+
+  private static boolean onlyTabs(ByteBuffer buf, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buf.get(i) != '\t') {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Skip leading whitespace and control chars, like String.trim()
+  */
+
+  private static int trimStart(ByteBuffer buf, int start, int end) {
+    while ((start < end) && ((buf.get(start) & 0xff) <= ' ')) {
+      start++;
+    }
+    return (start);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop trailing whitespace and control chars, like String.trim()
+  */
+
+  private static int trimEnd(ByteBuffer buf, int start, int end) {
+    while ((end > start) && ((buf.get(end - 1) & 0xff) <= ' ')) {
+      end--;
+    }
+    return (end);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the text of a line
+  */
+
+  private static String text(ByteBuffer buf, int start, int end) {
+    byte[] line = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      line[i - start] = buf.get(i);
+    }
+    return (new String(line, StandardCharsets.UTF_8));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Parse state for one chunk of the file. IDs are local to the chunk, and
+  ** line numbers are relative to the start of the chunk. Parsing stops at the
+  ** first bad line, which is recorded (not thrown) so the merge can decide
+  ** what the sequential reader would have hit first. Error and first-sighting
+  ** positions are keyed as (2 * line) + role, with role 0 for the source
+  ** column and 1 for the target, since the source is checked first.
+  */
+
+  private static class SifChunk {
+
+    private FileChannel chan_;
+    private long start_;
+    private long end_;
+    private boolean trackFirst_;
+
+    NodeInterner interner_;
+    int[] nodeClass_;
+    long[] firstKey_;
+    EdgeSet links_;
+    LinkSink sink_;
+    TaggedLinkSink tagSink_;
+    long lineCount_;
+
+    long errKey_;
+    String errReport_;
+    String errMessage_;
+    String errText_;
+
+    SifChunk(FileChannel chan, long start, long end, boolean trackFirst, LinkSink sink,
+             TaggedLinkSink tagSink) {
+      chan_ = chan;
+      start_ = start;
+      end_ = end;
+      trackFirst_ = trackFirst;
+      interner_ = new NodeInterner();
+      nodeClass_ = new int[1024];
+      firstKey_ = (trackFirst) ? new long[1024] : null;
+      links_ = ((sink == null) && (tagSink == null)) ? new EdgeSet() : null;
+      sink_ = sink;
+      tagSink_ = tagSink;
+      lineCount_ = 0;
+      errKey_ = Long.MAX_VALUE;
+    }
+
+    /***************************************************************************
+    **
+    ** Parse the chunk, a window at a time
+    */
+
+    void parse() throws IOException {
+      long pos = start_;
+      while ((pos < end_) && (errKey_ == Long.MAX_VALUE)) {
+        long len = Math.min(end_ - pos, WINDOW_);
+        boolean atEnd = (pos + len == end_);
+        ByteBuffer buf = chan_.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        int consumed = parseLines(buf, (int)len, atEnd);
+        if ((consumed == 0) && (errKey_ == Long.MAX_VALUE)) {
+          throw new IOException("Line too long at chunk line " + (lineCount_ + 1));
+        }
+        pos += consumed;
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Parse the blocks from the pump. A line cut off at the end of a block
+    ** is carried over to the front of the window for the next one.
+    */
+
+    void parse(GzipStreams.InflatePump pump) throws IOException {
+      ByteBuffer window = ByteBuffer.allocate(2 * PUMP_BLOCK_);
+      int fill = 0;
+      while (errKey_ == Long.MAX_VALUE) {
+        ByteBuffer block = pump.take();
+        if (block == null) {
+          parseLines(window, fill, true);
+          break;
+        }
+        int need = fill + block.remaining();
+        if (need > window.capacity()) {
+          if (need > WINDOW_) {
+            throw new IOException("Line too long at chunk line " + (lineCount_ + 1));
+          }
+          ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, window.capacity() * 2));
+          System.arraycopy(window.array(), 0, bigger.array(), 0, fill);
+          window = bigger;
+        }
+        window.position(fill);
+        window.put(block);
+        pump.release(block);
+        fill = need;
+        int consumed = parseLines(window, fill, false);
+        System.arraycopy(window.array(), consumed, window.array(), 0, fill - consumed);
+        fill -= consumed;
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Get the text of the given chunk line, for reporting
+    */
+
+    String lineText(long lineNum) throws IOException {
+      long pos = start_;
+      long count = 0;
+      while (pos < end_) {
+        long len = Math.min(end_ - pos, WINDOW_);
+        boolean atEnd = (pos + len == end_);
+        ByteBuffer buf = chan_.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        int limit = (int)len;
+        int at = 0;
+        while (at < limit) {
+          int end = lineEnd(buf, at, limit);
+          if (!atEnd && ((end == limit) || ((end == limit - 1) && (buf.get(end) == '\r')))) {
+            break;
+          }
+          if (++count == lineNum) {
+            return (text(buf, at, end));
+          }
+          at = nextLine(buf, end, limit);
+        }
+        if (at == 0) {
+          break;
+        }
+        pos += at;
+      }
+      return ("");
+    }
+
+    /***************************************************************************
+    **
+    ** Parse the complete lines in buf[0, limit). Returns the offset past the
+    ** last line handled; a partial line at the end of a window is left for the
+    ** next window.
+    */
+
+    private int parseLines(ByteBuffer buf, int limit, boolean atEnd) {
+      int pos = 0;
+      while ((pos < limit) && (errKey_ == Long.MAX_VALUE)) {
+        int end = lineEnd(buf, pos, limit);
+        if (!atEnd && ((end == limit) || ((end == limit - 1) && (buf.get(end) == '\r')))) {
+          return (pos);
+        }
+        lineCount_++;
+        parseLine(buf, pos, end);
+        pos = nextLine(buf, end, limit);
+      }
+      return (pos);
+    }
+
+    /***************************************************************************
+    **
+    ** Find the end of the line starting at pos
+    */
+
+    private int lineEnd(ByteBuffer buf, int pos, int limit) {
+      while (pos < limit) {
+        byte ch = buf.get(pos);
+        if ((ch == '\n') || (ch == '\r')) {
+          break;
+        }
+        pos++;
+      }
+      return (pos);
+    }
+
+    /***************************************************************************
+    **
+    ** Step past the line terminator at end
+    */
+
+    private int nextLine(ByteBuffer buf, int end, int limit) {
+      if (end < limit) {
+        if ((buf.get(end) == '\r') && (end + 1 < limit) && (buf.get(end + 1) == '\n')) {
+          end++;
+        }
+        end++;
+      }
+      return (end);
+    }
+
+    /***************************************************************************
+    **
+    ** Parse one line in buf[start, end)
+    */
+
+    private void parseLine(ByteBuffer buf, int start, int end) {
+
+      if (trimStart(buf, start, end) == end) {
+        return;
+      }
+
+      int tab1 = indexOfTab(buf, start, end);
+      int tab2 = (tab1 == -1) ? -1 : indexOfTab(buf, tab1 + 1, end);
+      if ((tab2 == -1) || onlyTabs(buf, tab2 + 1, end)) {
+        badLine(0, null, "Missing fields", buf, start, end);
+        return;
+      }
+      int trgEnd = indexOfTab(buf, tab2 + 1, end);
+      if (trgEnd == -1) {
+        trgEnd = end;
+      }
+
+      //
+      // Classes are the first and last pieces of the tag. Like String.split(),
+      // trailing dashes are ignored:
+      //
+
+      int tagEnd = tab2;
+      while ((tagEnd > tab1 + 1) && (buf.get(tagEnd - 1) == '-')) {
+        tagEnd--;
+      }
+      int firstDash = tab1 + 1;
+      while ((firstDash < tagEnd) && (buf.get(firstDash) != '-')) {
+        firstDash++;
+      }
+      int lastDash = tagEnd - 1;
+      while ((lastDash > tab1) && (buf.get(lastDash) != '-')) {
+        lastDash--;
+      }
+      int srcClass = parseClass(buf, tab1 + 1, firstDash);
+      int trgClass = parseClass(buf, lastDash + 1, tagEnd);
+      if ((srcClass == -1) || (trgClass == -1)) {
+        badLine(0, null, "Bad class numbers", buf, start, end);
+        return;
+      }
+
+      int srcStart = trimStart(buf, start, tab1);
+      int src = internNode(buf, srcStart, trimEnd(buf, srcStart, tab1), srcClass, 0, start, end);
+      if (src == -1) {
+        return;
+      }
+      int trgStart = trimStart(buf, tab2 + 1, trgEnd);
+      int trg = internNode(buf, trgStart, trimEnd(buf, trgStart, trgEnd), trgClass, 1, start, end);
+      if (trg == -1) {
+        return;
+      }
+
+      //
+      // Reverse sense of the directed link to point back to source. Repeats
+      // of a link (e.g. under a different tag) are dropped here, unless the
+      // links are being streamed out:
+      //
+
+      if (tagSink_ != null) {
+        int tagStart = trimStart(buf, tab1 + 1, tab2);
+        tagSink_.addLink(trg, src, buf, tagStart, trimEnd(buf, tagStart, tab2));
+      } else if (sink_ != null) {
+        sink_.addLink(trg, src);
+      } else {
+        links_.add(trg, src);
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Intern a node and check it is consistent with its class so far. Returns
+    ** -1 on a conflict.
+    */
+
+    private int internNode(ByteBuffer buf, int start, int end, int nodeClass, int role,
+                           int lineStart, int lineEnd) {
+      int before = interner_.size();
+      int node = interner_.intern(buf, start, end);
+      if (node == before) {
+        if (node == nodeClass_.length) {
+          nodeClass_ = Arrays.copyOf(nodeClass_, node * 2);
+          if (trackFirst_) {
+            firstKey_ = Arrays.copyOf(firstKey_, node * 2);
+          }
+        }
+        nodeClass_[node] = nodeClass;
+        if (trackFirst_) {
+          firstKey_[node] = (2 * lineCount_) + role;
+        }
+      } else if (nodeClass_[node] != nodeClass) {
+        String err = (role == 0) ? "Bad Src Class" : "Bad Trg Class";
+        badLine(role, err + " " + nodeClass_[node] + " " + nodeClass, err, buf, lineStart, lineEnd);
+        return (-1);
+      }
+      return (node);
+    }
+
+    /***************************************************************************
+    **
+    ** Record a bad line
+    */
+
+    private void badLine(int role, String report, String message, ByteBuffer buf, int start, int end) {
+      errKey_ = (2 * lineCount_) + role;
+      errReport_ = report;
+      errMessage_ = message;
+      errText_ = text(buf, start, end);
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Parses a range of chunks, splitting the range in half until it is one chunk
+  */
+
+  private static class ParseTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private SifChunk[] chunks_;
+    private int from_;
+    private int to_;
+
+    ParseTask(SifChunk[] chunks, int from, int to) {
+      chunks_ = chunks;
+      from_ = from;
+      to_ = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to_ - from_ == 1) {
+        try {
+          chunks_[from_].parse();
+        } catch (IOException ioex) {
+          throw new UncheckedIOException(ioex);
+        }
+        return;
+      }
+      int mid = (from_ + to_) >>> 1;
+      invokeAll(new ParseTask(chunks_, from_, mid), new ParseTask(chunks_, mid, to_));
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Copies a range of chunks' links into the merged arrays with global IDs
+  */
+
+  private static class RemapTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private SifChunk[] chunks_;
+    private int[][] maps_;
+    private int[] offsets_;
+    private int[] linkSrc_;
+    private int[] linkTrg_;
+    private int from_;
+    private int to_;
+
+    RemapTask(SifChunk[] chunks, int[][] maps, int[] offsets, int[] linkSrc, int[] linkTrg, int from, int to) {
+      chunks_ = chunks;
+      maps_ = maps;
+      offsets_ = offsets;
+      linkSrc_ = linkSrc;
+      linkTrg_ = linkTrg;
+      from_ = from;
+      to_ = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to_ - from_ == 1) {
+        SifChunk chunk = chunks_[from_];
+        int[] map = maps_[from_];
+        int base = offsets_[from_];
+        EdgeSet links = chunk.links_;
+        int numLinks = links.size();
+        for (int i = 0; i < numLinks; i++) {
+          linkSrc_[base + i] = (map == null) ? links.getSrc(i) : map[links.getSrc(i)];
+          linkTrg_[base + i] = (map == null) ? links.getTrg(i) : map[links.getTrg(i)];
+        }
+        return;
+      }
+      int mid = (from_ + to_) >>> 1;
+      invokeAll(new RemapTask(chunks_, maps_, offsets_, linkSrc_, linkTrg_, from_, mid),
+                new RemapTask(chunks_, maps_, offsets_, linkSrc_, linkTrg_, mid, to_));
+      return;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.layoutTools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/****************************************************************************
+**
+** Strongly connected components of a DagGraph, found with an iterative
+** Tarjan pass in O(V+E). Any component with more than one node, or a node
+** linked to itself, is a cycle the layout can never get past. The graph can
+** be condensed to a true DAG by collapsing each component to one node; that
+** node takes the name of its first member in name order and the lowest
+** member class, and expands back to its members (in name order) on output.
+*/
+
+public class StrongComponents {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private DagGraph graph_;
+  private int numComps_;
+  private int[] compOf_;
+  private int[] compStart_;
+  private int[] members_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Finds the components.
+  */
+
+  public StrongComponents(DagGraph graph) {
+    graph_ = graph;
+    findComponents();
+    groupMembers();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the number of components
+  */
+
+  public int getComponentCount() {
+    return (numComps_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the component for the node
+  */
+
+  public int getComponent(int node) {
+    return (compOf_[node]);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the members of a component, in name order
+  */
+
+  public int[] getMembers(int comp) {
+    return (Arrays.copyOfRange(members_, compStart_[comp], compStart_[comp + 1]));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the components that are cycles
+  */
+
+  public List<int[]> getCyclicComponents() {
+    ArrayList<int[]> retval = new ArrayList<int[]>();
+    for (int i = 0; i < numComps_; i++) {
+      if (isCyclic(i)) {
+        retval.add(getMembers(i));
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if there are any cycles
+  */
+
+  public boolean hasCycles() {
+    for (int i = 0; i < numComps_; i++) {
+      if (isCyclic(i)) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+
+  /***************************************************************************
+  **
+  ** Build the condensation DAG. Node i of the result is component i.
+  */
+
+  public DagGraph condense() {
+    String[] names = new String[numComps_];
+    int[] classes = new int[numComps_];
+    for (int i = 0; i < numComps_; i++) {
+      int start = compStart_[i];
+      int end = compStart_[i + 1];
+      names[i] = graph_.getNodeName(members_[start]);
+      int minClass = Integer.MAX_VALUE;
+      for (int j = start; j < end; j++) {
+        minClass = Math.min(minClass, graph_.getNodeClass(members_[j]));
+      }
+      classes[i] = minClass;
+    }
+
+    int numLinks = graph_.getLinkCount();
+    int[] linkSrc = new int[numLinks];
+    int[] linkTrg = new int[numLinks];
+    int count = 0;
+    int numNodes = graph_.getNodeCount();
+    for (int i = 0; i < numNodes; i++) {
+      int kidComp = compOf_[i];
+      int end = graph_.parentsEnd(i);
+      for (int j = graph_.parentsStart(i); j < end; j++) {
+        int parComp = compOf_[graph_.getParent(j)];
+        if (parComp != kidComp) {
+          linkSrc[count] = kidComp;
+          linkTrg[count++] = parComp;
+        }
+      }
+    }
+    return (new DagGraph(names, classes, linkSrc, linkTrg, count));
+  }
+
+  /***************************************************************************
+  **
+  ** Expand a placement order of the condensation back to the original nodes
+  */
+
+  public int[] expand(int[] compOrder) {
+    int[] retval = new int[members_.length];
+    int count = 0;
+    for (int i = 0; i < compOrder.length; i++) {
+      int comp = compOrder[i];
+      for (int j = compStart_[comp]; j < compStart_[comp + 1]; j++) {
+        retval[count++] = members_[j];
+      }
+    }
+    return ((count == retval.length) ? retval : Arrays.copyOf(retval, count));
+  }
+
+  /***************************************************************************
+  **
+  ** Describe the cyclic components, showing at most the given number
+  */
+
+  public String describeCycles(int maxShown) {
+    StringBuffer buf = new StringBuffer();
+    List<int[]> cycles = getCyclicComponents();
+    int numCycles = cycles.size();
+    buf.append(numCycles);
+    buf.append(" cyclic component(s):");
+    for (int i = 0; i < Math.min(numCycles, maxShown); i++) {
+      int[] members = cycles.get(i);
+      buf.append(" {");
+      for (int j = 0; j < Math.min(members.length, maxShown); j++) {
+        if (j > 0) {
+          buf.append(", ");
+        }
+        buf.append(graph_.getNodeName(members[j]));
+      }
+      if (members.length > maxShown) {
+        buf.append(", ... (" + members.length + " nodes)");
+      }
+      buf.append("}");
+    }
+    if (numCycles > maxShown) {
+      buf.append(" ...");
+    }
+    return (buf.toString());
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the component is a cycle
+  */
+
+  private boolean isCyclic(int comp) {
+    int start = compStart_[comp];
+    if (compStart_[comp + 1] - start > 1) {
+      return (true);
+    }
+    int node = members_[start];
+    int end = graph_.parentsEnd(node);
+    for (int i = graph_.parentsStart(node); i < end; i++) {
+      if (graph_.getParent(i) == node) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+
+  /***************************************************************************
+  **
+  ** Tarjan's algorithm, with explicit stacks so deep graphs don't blow the
+  ** call stack
+  */
+
+  private void findComponents() {
+    int numNodes = graph_.getNodeCount();
+    int[] index = new int[numNodes];
+    int[] low = new int[numNodes];
+    boolean[] onStack = new boolean[numNodes];
+    int[] stack = new int[numNodes];
+    int[] callStack = new int[numNodes];
+    int[] edgePos = new int[numNodes];
+    Arrays.fill(index, -1);
+    compOf_ = new int[numNodes];
+    numComps_ = 0;
+    int counter = 0;
+    int sp = 0;
+
+    for (int root = 0; root < numNodes; root++) {
+      if (index[root] != -1) {
+        continue;
+      }
+      int csp = 0;
+      index[root] = low[root] = counter++;
+      stack[sp++] = root;
+      onStack[root] = true;
+      callStack[csp++] = root;
+      edgePos[root] = graph_.parentsStart(root);
+
+      while (csp > 0) {
+        int node = callStack[csp - 1];
+        if (edgePos[node] < graph_.parentsEnd(node)) {
+          int next = graph_.getParent(edgePos[node]++);
+          if (index[next] == -1) {
+            index[next] = low[next] = counter++;
+            stack[sp++] = next;
+            onStack[next] = true;
+            callStack[csp++] = next;
+            edgePos[next] = graph_.parentsStart(next);
+          } else if (onStack[next]) {
+            low[node] = Math.min(low[node], index[next]);
+          }
+          continue;
+        }
+        csp--;
+        if (csp > 0) {
+          int caller = callStack[csp - 1];
+          low[caller] = Math.min(low[caller], low[node]);
+        }
+        if (low[node] == index[node]) {
+          int member;
+          do {
+            member = stack[--sp];
+            onStack[member] = false;
+            compOf_[member] = numComps_;
+          } while (member != node);
+          numComps_++;
+        }
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Bucket the members by component, keeping name order in each bucket
+  */
+
+  private void groupMembers() {
+    int numNodes = graph_.getNodeCount();
+    compStart_ = new int[numComps_ + 1];
+    for (int i = 0; i < numNodes; i++) {
+      compStart_[compOf_[i] + 1]++;
+    }
+    for (int i = 0; i < numComps_; i++) {
+      compStart_[i + 1] += compStart_[i];
+    }
+    int[] fill = Arrays.copyOf(compStart_, numComps_);
+    members_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      int node = graph_.getNodeForNameRank(i);
+      members_[fill[compOf_[node]]++] = node;
+    }
+    return;
+  }
+}